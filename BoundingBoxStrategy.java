@@ -0,0 +1,37 @@
+package pipeline;
+
+import pipeline.fragment.FragmentProcessor;
+import pipeline.misc.FrameBuffer;
+
+/**
+ * The default strategy: tests every pixel of the bounding box, or with the
+ * hierarchical option, every block of it first. Cheap to set up and well
+ * suited to small triangles, but large or skinny triangles leave most of
+ * their bounding box empty.
+ */
+public class BoundingBoxStrategy extends RasterStrategy {
+
+    /**
+     * @see RasterStrategy#walk(Rasterizer, FragmentProcessor, FrameBuffer, int, int, int, int)
+     */
+    public void walk(Rasterizer r, FragmentProcessor fp, FrameBuffer fb, int xLo, int yLo, int xHi, int yHi) {
+
+        if (fp.usesDerivatives()) {
+            r.walkQuads(fp, fb, xLo, yLo, xHi, yHi);
+            return;
+        }
+        if (r.hierarchical) {
+            r.walkBlocks(fp, fb, xLo, yLo, xHi, yHi);
+            return;
+        }
+
+        for (int y = yLo; y <= yHi; y++) {
+            int xEnd;
+            for (int xStart = xLo; xStart <= xHi; xStart = xEnd + 1) {
+                xEnd = Math.min(xHi, xStart | (Rasterizer.BLOCK_SIZE - 1));
+                r.span(fp, fb, y, xStart, xEnd, true);
+            }
+        }
+    }
+
+}
@@ -1,199 +1,333 @@
 package pipeline;
 
+import javax.vecmath.Vector4f;
+
 import pipeline.misc.Vertex;
 
 /**
+ * Clips triangles against the view frustum. Each vertex gets an outcode with
+ * one bit for every plane it lies outside of. Triangles lying entirely
+ * outside one of the planes bounding the screen are rejected, and triangles
+ * lying between the near and far planes and inside the guard band are
+ * accepted unchanged; the rasterizer clamps the rest of them away with its
+ * bounding box. Only the few triangles left over are clipped, with the
+ * Sutherland-Hodgman algorithm, and the resulting polygon is returned as a
+ * fan of triangles.
+ *
  * @author Beowulf
  */
 public class Clipper {
 
+    /** Outcode bits of the near and far planes. */
+    protected static final int NEAR = 1, FAR = 2;
+
+    /** Outcode bits of the sides of the screen. */
+    protected static final int LEFT = 4, RIGHT = 8, BOTTOM = 16, TOP = 32;
+
+    /** Outcode bits of the sides of the guard band. */
+    protected static final int GUARD_LEFT = 64, GUARD_RIGHT = 128, GUARD_BOTTOM = 256, GUARD_TOP = 512;
+
+    /** The planes triangles are actually clipped against. */
+    protected static final int CLIP_PLANES = NEAR | FAR | GUARD_LEFT | GUARD_RIGHT | GUARD_BOTTOM | GUARD_TOP;
+
+    /** The number of planes triangles may be clipped against. */
+    protected static final int NUM_CLIP_PLANES = 6;
+
+    /**
+     * Pixels by which the guard band extends beyond each side of the screen.
+     * Triangles reaching no further out are not clipped at the sides. This is
+     * far inside the range the fixed point edges of the rasterizer can handle.
+     */
+    public static final float GUARD_BAND = 4096;
+
     /** Number of user-supplied attributes */
     protected int na;
 
-    /** Temporaries for clipping */
-    protected Vertex[] fClip = { new Vertex(), new Vertex(), new Vertex() };
+    /**
+     * The screen rectangle used for rejection, in pixels. It is one pixel
+     * larger than the image on each side so that multisampled triangles are
+     * never lost.
+     */
+    protected float xMin, xMax, yMin, yMax;
+
+    /** The guard band rectangle, in pixels. */
+    protected float gxMin, gxMax, gyMin, gyMax;
+
+    /**
+     * Storage for the vertices created by clipping, at most 2 for every clip
+     * plane.
+     */
+    protected Vertex[] pool = new Vertex[2 * NUM_CLIP_PLANES];
+
+    /** The number of vertices of the pool in use. */
+    protected int nPool;
+
+    /**
+     * The clipped polygon, and the one being built from it. Vertices that
+     * survive clipping are the caller's own vertex objects, the others come
+     * from the pool.
+     */
+    protected Vertex[] poly = new Vertex[3 + NUM_CLIP_PLANES], polyNext = new Vertex[3 + NUM_CLIP_PLANES];
+
+    /** The number of vertices of the clipped polygon. */
+    protected int nPoly;
+
+    /** The triangle returned by getTriangle. */
+    protected final Vertex[] triangle = new Vertex[3];
 
     /**
-     * Initializes a new clipper with a given number of attributes.
-     * 
+     * Initializes a new clipper with a given number of attributes and the
+     * size of the image.
+     *
      * @param newNa The number of attributes.
+     * @param nx The width of the image.
+     * @param ny The height of the image.
      */
-    public Clipper(int newNa) {
+    public Clipper(int newNa, int nx, int ny) {
 
         na = newNa;
 
-        fClip[0].setAttrs(newNa);
-        fClip[1].setAttrs(newNa);
-        fClip[2].setAttrs(newNa);
+        xMin = -1;
+        xMax = nx;
+        yMin = -1;
+        yMax = ny;
+        gxMin = -GUARD_BAND;
+        gxMax = nx + GUARD_BAND;
+        gyMin = -GUARD_BAND;
+        gyMax = ny + GUARD_BAND;
+
+        for (int i = 0; i < pool.length; i++) {
+            pool[i] = new Vertex();
+            pool[i].setAttrs(newNa);
+        }
     }
 
     /**
      * The interface for the clipper. Each triangle will be clipped against the
-     * near plane, resulting in either 0, 1, or 2 triangles. The number of
-     * triangles will be returned, and the resulting vertices will be stored into
-     * fOut1 if only one triangle results, or in both fOut1 and fOut2 if two triangles
-     * result.
-     * 
+     * view frustum, resulting in a convex polygon that is cut into a fan of
+     * triangles. The number of triangles will be returned, and the triangles
+     * can then be read with getTriangle. They keep the winding of the input
+     * triangle. When nothing needs clipping, the only triangle consists of
+     * the input vertices themselves, so they must stay unchanged while the
+     * result is in use.
+     *
      * @param f The vertices of the triangle to be clipped.
-     * @param fOut1 The vertices of the first resulting triangle, if any.
-     * @param fOut2 The vertices of the second resulting triangle, if any.
      * @return The number of resulting triangles.
      */
-    public int clip(Vertex[] f, Vertex[] fOut1, Vertex[] fOut2) {
+    public int clip(Vertex[] f) {
 
-        // Clip the triangle against the near plane, which is z == 0 in homogeneous
-        // screen space.
+        int c0 = outcode(f[0].v), c1 = outcode(f[1].v), c2 = outcode(f[2].v);
 
-        int code = ((f[0].v.z > 0) ? 1 : 0) | ((f[1].v.z > 0) ? 2 : 0) | ((f[2].v.z > 0) ? 4 : 0);
-
-        if (code == 0) // all three out
+        // All three vertices outside the same plane
+        if ((c0 & c1 & c2) != 0)
             return 0;
 
-        else if (code == 1 || code == 2 || code == 4) { // one in, two out
-            int kIn, kOut1, kOut2;
-
-            if (code == 1) { // only v[0] in
-                kIn = 0;
-                kOut1 = 1;
-                kOut2 = 2;
-            }
-            else if (code == 2) { // only v[1] in
-                kIn = 1;
-                kOut1 = 2;
-                kOut2 = 0;
-            }
-            else if (code == 4) { // only v[2] in
-                kIn = 2;
-                kOut1 = 0;
-                kOut2 = 1;
-            }
-            else { // error
-                return -1;
-            }
-
-            float a1 = -f[kIn].v.z / (f[kOut1].v.z - f[kIn].v.z);
-            float a2 = -f[kIn].v.z / (f[kOut2].v.z - f[kIn].v.z);
-
-            fClip[kIn].v.set(f[kIn].v);
-            fClip[kOut1].v.set((1 - a1) * f[kIn].v.x + a1 * f[kOut1].v.x, (1 - a1) * f[kIn].v.y + a1 * f[kOut1].v.y, 0.0f, (1 - a1) * f[kIn].v.w + a1 * f[kOut1].v.w);
-            fClip[kOut2].v.set((1 - a2) * f[kIn].v.x + a2 * f[kOut2].v.x, (1 - a2) * f[kIn].v.y + a2 * f[kOut2].v.y, 0.0f, (1 - a2) * f[kIn].v.w + a2 * f[kOut2].v.w);
-            for (int ia = 0; ia < na; ia++) {
-                fClip[kIn].attrs[ia] = f[kIn].attrs[ia];
-                fClip[kOut1].attrs[ia] = (1 - a1) * f[kIn].attrs[ia] + a1 * f[kOut1].attrs[ia];
-                fClip[kOut2].attrs[ia] = (1 - a2) * f[kIn].attrs[ia] + a2 * f[kOut2].attrs[ia];
-            }
-
-            fOut1[kIn].v.set(fClip[kIn].v);
-            fOut1[kOut1].v.set(fClip[kOut1].v);
-            fOut1[kOut2].v.set(fClip[kOut2].v);
-
-            fOut1[kIn].setAttrs(na);
-            fOut1[kOut1].setAttrs(na);
-            fOut1[kOut2].setAttrs(na);
+        // The polygon starts out referencing the input vertices; they are
+        // never copied, and never modified.
+        nPool = 0;
+        nPoly = 3;
+        poly[0] = f[0];
+        poly[1] = f[1];
+        poly[2] = f[2];
+
+        // Inside the guard band: nothing to clip
+        int planes = (c0 | c1 | c2) & CLIP_PLANES;
+        if (planes == 0)
+            return 1;
 
-            for (int ia = 0; ia < na; ia++) {
-                fOut1[kIn].attrs[ia] = fClip[kIn].attrs[ia];
-                fOut1[kOut1].attrs[ia] = fClip[kOut1].attrs[ia];
-                fOut1[kOut2].attrs[ia] = fClip[kOut2].attrs[ia];
-            }
+        for (int plane = NEAR; plane <= GUARD_TOP && nPoly >= 3; plane <<= 1) {
+            if ((planes & plane) != 0)
+                clipPlane(plane);
+        }
+        return Math.max(0, nPoly - 2);
+    }
 
-            return 1;
+    /**
+     * Runs the rejection and acceptance tests of clip over the live triangles
+     * of a batch at once, reading the positions from the batch arrays, and
+     * stores the planes each triangle has to be clipped against in the batch.
+     *
+     * @param b The batch.
+     */
+    void classify(TriangleBatch b) {
+
+        final int i1 = TriangleBatch.SIZE, i2 = 2 * TriangleBatch.SIZE;
+        float[] x = b.x, y = b.y, z = b.z, w = b.w;
+        for (int k = 0; k < b.nLive; k++) {
+            int i = b.live[k];
+            int c0 = outcode(x[i], y[i], z[i], w[i]);
+            int c1 = outcode(x[i1 + i], y[i1 + i], z[i1 + i], w[i1 + i]);
+            int c2 = outcode(x[i2 + i], y[i2 + i], z[i2 + i], w[i2 + i]);
+            b.clipPlanes[i] = (c0 & c1 & c2) != 0 ? -1 : (c0 | c1 | c2) & CLIP_PLANES;
         }
+    }
 
-        else if (code == 6 || code == 5 || code == 3) { // two in, one out
-            int kOut, kIn1, kIn2;
-            if (code == 6) { // only v[0] out
-                kOut = 0;
-                kIn1 = 1;
-                kIn2 = 2;
-            }
-            else if (code == 5) { // only v[1] out
-                kOut = 1;
-                kIn1 = 2;
-                kIn2 = 0;
-            }
-            else if (code == 3) { // only v[2] out
-                kOut = 2;
-                kIn1 = 0;
-                kIn2 = 1;
-            }
-            else { // error
-                return -1;
-            }
+    /**
+     * Tells whether the last call to clip had to cut the triangle, as opposed
+     * to accepting or rejecting it whole.
+     *
+     * @return True if clipping created new vertices.
+     */
+    public boolean wasClipped() {
 
-            float a1 = -f[kOut].v.z / (f[kIn1].v.z - f[kOut].v.z);
-            float a2 = -f[kOut].v.z / (f[kIn2].v.z - f[kOut].v.z);
+        return nPool > 0;
+    }
 
-            fClip[kOut].v.set((1 - a1) * f[kOut].v.x + a1 * f[kIn1].v.x, (1 - a1) * f[kOut].v.y + a1 * f[kIn1].v.y, 0.0f, (1 - a1) * f[kOut].v.w + a1 * f[kIn1].v.w);
-            fClip[kIn1].v.set(f[kIn1].v);
-            fClip[kIn2].v.set(f[kIn2].v);
-            for (int ia = 0; ia < na; ia++) {
-                fClip[kOut].attrs[ia] = (1 - a1) * f[kOut].attrs[ia] + a1 * f[kIn1].attrs[ia];
-                fClip[kIn1].attrs[ia] = f[kIn1].attrs[ia];
-                fClip[kIn2].attrs[ia] = f[kIn2].attrs[ia];
-            }
+    /**
+     * Returns one of the triangles produced by the last call to clip. Only
+     * the first 3 entries of the returned array are meaningful, and it is
+     * reused by the next call.
+     *
+     * @param i The index of the triangle, less than the count returned by clip.
+     * @return The 3 vertices of the triangle.
+     */
+    public Vertex[] getTriangle(int i) {
 
-            // Set up the first triangle
-            fOut1[kIn1].v.set(fClip[kIn1].v);
-            fOut1[kIn2].v.set(fClip[kIn2].v);
-            fOut1[kOut].v.set(fClip[kOut].v);
+        // The first triangle of the fan is the start of the polygon
+        if (i == 0)
+            return poly;
 
-            fOut1[kIn1].setAttrs(na);
-            fOut1[kIn2].setAttrs(na);
-            fOut1[kOut].setAttrs(na);
+        triangle[0] = poly[0];
+        triangle[1] = poly[i + 1];
+        triangle[2] = poly[i + 2];
+        return triangle;
+    }
 
-            for (int ia = 0; ia < na; ia++) {
-                fOut1[kIn1].attrs[ia] = fClip[kIn1].attrs[ia];
-                fOut1[kIn2].attrs[ia] = fClip[kIn2].attrs[ia];
-                fOut1[kOut].attrs[ia] = fClip[kOut].attrs[ia];
-            }
+    /**
+     * Computes the outcode of a vertex in homogeneous screen space. The
+     * comparisons are written so that NaN coordinates count as outside.
+     *
+     * @param p The position of the vertex.
+     * @return The outcode, a bit for each plane the vertex lies outside of.
+     */
+    protected int outcode(Vector4f p) {
 
-            fClip[kOut].v.set((1 - a1) * f[kOut].v.x + a1 * f[kIn1].v.x, (1 - a1) * f[kOut].v.y + a1 * f[kIn1].v.y, 0.0f, (1 - a1) * f[kOut].v.w + a1 * f[kIn1].v.w);
-            fClip[kIn1].v.set(f[kIn2].v);
-            fClip[kIn2].v.set((1 - a2) * f[kOut].v.x + a2 * f[kIn2].v.x, (1 - a2) * f[kOut].v.y + a2 * f[kIn2].v.y, 0.0f, (1 - a2) * f[kOut].v.w + a2 * f[kIn2].v.w);
-            for (int ia = 0; ia < na; ia++) {
-                fClip[kOut].attrs[ia] = (1 - a1) * f[kOut].attrs[ia] + a1 * f[kIn1].attrs[ia];
-                fClip[kIn1].attrs[ia] = f[kIn2].attrs[ia];
-                fClip[kIn2].attrs[ia] = (1 - a2) * f[kOut].attrs[ia] + a2 * f[kIn2].attrs[ia];
-            }
+        return outcode(p.x, p.y, p.z, p.w);
+    }
 
-            // Set up the other triangle
-            fOut2[kIn1].v.set(fClip[kIn1].v);
-            fOut2[kIn2].v.set(fClip[kIn2].v);
-            fOut2[kOut].v.set(fClip[kOut].v);
+    /**
+     * Computes the outcode of a vertex given by its coordinates.
+     *
+     * @see #outcode(Vector4f)
+     */
+    protected int outcode(float x, float y, float z, float w) {
+
+        int code = 0;
+        if (!(z >= 0))
+            code |= NEAR;
+        if (!(z <= w))
+            code |= FAR;
+        if (!(x >= xMin * w))
+            code |= !(x >= gxMin * w) ? LEFT | GUARD_LEFT : LEFT;
+        if (!(x <= xMax * w))
+            code |= !(x <= gxMax * w) ? RIGHT | GUARD_RIGHT : RIGHT;
+        if (!(y >= yMin * w))
+            code |= !(y >= gyMin * w) ? BOTTOM | GUARD_BOTTOM : BOTTOM;
+        if (!(y <= yMax * w))
+            code |= !(y <= gyMax * w) ? TOP | GUARD_TOP : TOP;
+        return code;
+    }
 
-            fOut2[kIn1].setAttrs(na);
-            fOut2[kIn2].setAttrs(na);
-            fOut2[kOut].setAttrs(na);
+    /**
+     * Returns the signed distance of a point from one of the clip planes,
+     * positive on the inside.
+     *
+     * @param p The position of the point.
+     * @param plane The outcode bit of the plane.
+     * @return The distance, in homogeneous units.
+     */
+    protected float distance(Vector4f p, int plane) {
+
+        switch (plane) {
+        case NEAR:
+            return p.z;
+        case FAR:
+            return p.w - p.z;
+        case GUARD_LEFT:
+            return p.x - gxMin * p.w;
+        case GUARD_RIGHT:
+            return gxMax * p.w - p.x;
+        case GUARD_BOTTOM:
+            return p.y - gyMin * p.w;
+        default:
+            return gyMax * p.w - p.y;
+        }
+    }
 
-            for (int ia = 0; ia < na; ia++) {
-                fOut2[kIn1].attrs[ia] = fClip[kIn1].attrs[ia];
-                fOut2[kIn2].attrs[ia] = fClip[kIn2].attrs[ia];
-                fOut2[kOut].attrs[ia] = fClip[kOut].attrs[ia];
+    /**
+     * Clips the polygon against one plane (one step of Sutherland-Hodgman).
+     *
+     * @param plane The outcode bit of the plane.
+     */
+    protected void clipPlane(int plane) {
+
+        int n = 0;
+        Vertex prev = poly[nPoly - 1];
+        float dPrev = distance(prev.v, plane);
+        for (int iv = 0; iv < nPoly; iv++) {
+            Vertex cur = poly[iv];
+            float dCur = distance(cur.v, plane);
+            if (dCur >= 0) {
+                if (!(dPrev >= 0))
+                    polyNext[n++] = intersect(cur, dCur, prev, dPrev, plane);
+                polyNext[n++] = cur;
             }
-
-            return 2;
+            else if (dPrev >= 0) {
+                polyNext[n++] = intersect(prev, dPrev, cur, dCur, plane);
+            }
+            prev = cur;
+            dPrev = dCur;
         }
 
-        else { // code == 7 => all three in
-
-            // Copy straight to output
-            fOut1[0].v.set(f[0].v);
-            fOut1[1].v.set(f[1].v);
-            fOut1[2].v.set(f[2].v);
-
-            fOut1[0].setAttrs(na);
-            fOut1[1].setAttrs(na);
-            fOut1[2].setAttrs(na);
-
-            for (int ia = 0; ia < na; ia++) {
-                fOut1[0].attrs[ia] = f[0].attrs[ia];
-                fOut1[1].attrs[ia] = f[1].attrs[ia];
-                fOut1[2].attrs[ia] = f[2].attrs[ia];
-            }
+        Vertex[] t = poly;
+        poly = polyNext;
+        polyNext = t;
+        nPoly = n;
+    }
 
-            return 1;
+    /**
+     * Creates the vertex where an edge crosses a clip plane. The edge is
+     * always interpolated from its inside end, so that triangles sharing the
+     * edge get exactly the same vertex, and the new vertex is put exactly on
+     * the plane.
+     *
+     * @param in The vertex inside the plane.
+     * @param dIn The distance of in from the plane.
+     * @param out The vertex outside the plane.
+     * @param dOut The distance of out from the plane.
+     * @param plane The outcode bit of the plane.
+     * @return The new vertex.
+     */
+    protected Vertex intersect(Vertex in, float dIn, Vertex out, float dOut, int plane) {
+
+        float a = dIn / (dIn - dOut);
+        Vertex r = pool[nPool++];
+        Vector4f p = in.v, q = out.v;
+        r.v.set((1 - a) * p.x + a * q.x, (1 - a) * p.y + a * q.y, (1 - a) * p.z + a * q.z, (1 - a) * p.w + a * q.w);
+        for (int ia = 0; ia < na; ia++)
+            r.attrs[ia] = (1 - a) * in.attrs[ia] + a * out.attrs[ia];
+
+        switch (plane) {
+        case NEAR:
+            r.v.z = 0.0f;
+            break;
+        case FAR:
+            r.v.z = r.v.w;
+            break;
+        case GUARD_LEFT:
+            r.v.x = gxMin * r.v.w;
+            break;
+        case GUARD_RIGHT:
+            r.v.x = gxMax * r.v.w;
+            break;
+        case GUARD_BOTTOM:
+            r.v.y = gyMin * r.v.w;
+            break;
+        default:
+            r.v.y = gyMax * r.v.w;
+            break;
         }
+        return r;
     }
 
 }
@@ -0,0 +1,169 @@
+package pipeline;
+
+import javax.vecmath.Color3f;
+import javax.vecmath.Vector2f;
+import javax.vecmath.Vector3f;
+
+import pipeline.math.Matrix4f;
+
+/**
+ * A recorded stream of pipeline calls. Every call is stored as an opcode in
+ * a flat int array, with its integer operands following it there and its
+ * float operands appended to a flat float array, so that a list occupies two
+ * arrays no matter how many calls it holds. Pipeline.callList walks both
+ * arrays in step to replay it.
+ */
+class DisplayList {
+
+    /** The opcodes of the recorded calls. */
+    static final int LOAD_IDENTITY = 0, ROTATE = 1, TRANSLATE = 2, SCALE = 3;
+    static final int BEGIN = 4, VERTEX = 5, END = 6, TRIANGLE = 7;
+    static final int CALL_LIST = 8, DRAW_BUFFER = 9;
+    static final int PUSH_MATRIX = 10, POP_MATRIX = 11, MULT_MATRIX = 12;
+    static final int DRAW_INSTANCED = 13;
+    static final int LOOK_AT = 14, FRUSTUM = 15, VIEWPORT = 16;
+
+    /** The mask of the opcode within an entry of ops. */
+    static final int OP_MASK = 0xff;
+
+    /** Flags telling which optional vertex attributes were recorded. */
+    static final int HAS_COLOR = 0x100, HAS_NORMAL = 0x200, HAS_TEXCOORD = 0x400;
+
+    /** The opcodes and integer operands. */
+    int[] ops = new int[64];
+
+    /** The float operands. */
+    float[] data = new float[256];
+
+    /** The number of entries used in ops and data. */
+    int nOps, nData;
+
+    /**
+     * The handles of the buffers created for the list while recording it,
+     * which are deleted with it.
+     */
+    int[] owned = new int[0];
+
+    /** The number of entries used in owned. */
+    int nOwned;
+
+    /**
+     * Appends an opcode or integer operand.
+     */
+    void op(int op) {
+
+        if (nOps == ops.length) {
+            int[] newOps = new int[2 * ops.length];
+            System.arraycopy(ops, 0, newOps, 0, nOps);
+            ops = newOps;
+        }
+        ops[nOps++] = op;
+    }
+
+    /**
+     * Records that a buffer belongs to this list.
+     */
+    void own(int handle) {
+
+        if (nOwned == owned.length) {
+            int[] newOwned = new int[Math.max(4, 2 * owned.length)];
+            System.arraycopy(owned, 0, newOwned, 0, nOwned);
+            owned = newOwned;
+        }
+        owned[nOwned++] = handle;
+    }
+
+    /**
+     * Makes room for n more float operands.
+     */
+    private void reserve(int n) {
+
+        if (nData + n > data.length) {
+            float[] newData = new float[Math.max(nData + n, 2 * data.length)];
+            System.arraycopy(data, 0, newData, 0, nData);
+            data = newData;
+        }
+    }
+
+    /**
+     * Appends a float operand.
+     */
+    void add(float f) {
+
+        reserve(1);
+        data[nData++] = f;
+    }
+
+    /**
+     * Appends the 3 components of a vector.
+     */
+    void add(Vector3f v) {
+
+        reserve(3);
+        data[nData++] = v.x;
+        data[nData++] = v.y;
+        data[nData++] = v.z;
+    }
+
+    /**
+     * Appends the 3 components of a color.
+     */
+    void add(Color3f c) {
+
+        reserve(3);
+        data[nData++] = c.x;
+        data[nData++] = c.y;
+        data[nData++] = c.z;
+    }
+
+    /**
+     * Appends the 16 entries of a matrix, row by row.
+     */
+    void add(Matrix4f m) {
+
+        reserve(16);
+        for (int i = 0; i < 4; i++)
+            for (int j = 0; j < 4; j++)
+                data[nData++] = m.m[i][j];
+    }
+
+    /**
+     * Appends a vertex: its position, followed by those of the color, normal
+     * and texture coordinates that are not null.
+     */
+    void add(Vector3f v, Color3f c, Vector3f n, Vector2f t) {
+
+        add(v);
+        if (c != null)
+            add(c);
+        if (n != null)
+            add(n);
+        if (t != null) {
+            reserve(2);
+            data[nData++] = t.x;
+            data[nData++] = t.y;
+        }
+    }
+
+    /**
+     * Returns the flags describing which optional attributes are present.
+     */
+    static int flags(Object c, Object n, Object t) {
+
+        return (c != null ? HAS_COLOR : 0) | (n != null ? HAS_NORMAL : 0) | (t != null ? HAS_TEXCOORD : 0);
+    }
+
+    /**
+     * Trims the arrays to the recorded size once recording is finished.
+     */
+    void trim() {
+
+        int[] newOps = new int[nOps];
+        System.arraycopy(ops, 0, newOps, 0, nOps);
+        ops = newOps;
+        float[] newData = new float[nData];
+        System.arraycopy(data, 0, newData, 0, nData);
+        data = newData;
+    }
+
+}
@@ -188,6 +188,7 @@ public class MainFrame extends JFrame implements MouseListener, MouseMotionListe
         scene.setTexture((Texture) textureCombo.getSelectedItem());
         pv.setScene(scene);
         gv.setScene(scene);
+        configure();
 
         pack();
         Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
@@ -196,6 +197,18 @@ public class MainFrame extends JFrame implements MouseListener, MouseMotionListe
 
     protected boolean listening = true;
 
+    /**
+     * Configures both views with the processors selected in the combo boxes.
+     */
+    protected void configure() {
+
+        Class<?> fpClass = (Class<?>) fragmentCombo.getSelectedItem();
+        Class<?> tpClass = (Class<?>) vertexCombo.getSelectedItem();
+
+        pv.configure(fpClass, tpClass);
+        gv.configure(fpClass, tpClass);
+    }
+
     /**
      * @see ActionListener#actionPerformed(ActionEvent)
      */
@@ -244,11 +257,9 @@ public class MainFrame extends JFrame implements MouseListener, MouseMotionListe
             }
         }
 
-        Class<?> fpClass = (Class<?>) fragmentCombo.getSelectedItem();
-        Class<?> tpClass = (Class<?>) vertexCombo.getSelectedItem();
-
-        pv.configure(fpClass, tpClass);
-        gv.configure(fpClass, tpClass);
+        // Scene, texture and camera changes keep the configuration
+        if (src == fragmentCombo || src == vertexCombo)
+            configure();
         pv.refresh();
         gv.refresh();
     }
@@ -1,11 +1,14 @@
 package pipeline;
 
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Vector;
 
 import javax.vecmath.Color3f;
 import javax.vecmath.Vector2f;
 import javax.vecmath.Vector3f;
+import javax.vecmath.Vector4f;
 
 import pipeline.fragment.FragmentProcessor;
 import pipeline.fragment.TrivialColorFP;
@@ -28,6 +31,10 @@ public class Pipeline {
 
     private static final Object[] EMPTY_OBJECT_ARRAY = new Object[0];
 
+    private static final float[] EMPTY_FLOAT_ARRAY = new float[0];
+
+    private static final int[] EMPTY_INT_ARRAY = new int[0];
+
     private static final int MODE_NONE = 0;
     public static final int TRIANGLES = 1;
     public static final int TRIANGLE_STRIP = 2;
@@ -36,15 +43,82 @@ public class Pipeline {
     public static final int QUAD_STRIP = 5;
     private int mode = MODE_NONE;
 
+    /** Cull modes: which triangles are discarded before clipping. */
+    public static final int CULL_NONE = 0;
+    public static final int CULL_BACK = 1;
+    public static final int CULL_FRONT = 2;
+    private int cullMode = CULL_BACK;
+
+    /** The current configuration, holding the triangle and fragment processors. */
+    private PipelineState state;
+
+    /** The configurations created so far, by fragment and vertex processor class. */
+    private final HashMap<Class<?>, HashMap<Class<?>, PipelineState>> states = new HashMap<Class<?>, HashMap<Class<?>, PipelineState>>();
+
     /** The triangle processor. Sets up the vertices for rasterization. */
     private VertexProcessor vp;
 
-    /** The clipper. Clips triangles against the near plane. */
+    /** The clipper. Clips triangles against the view frustum. */
     private Clipper clipper;
 
     /** The rasterizer. Rasterizes triangles into fragments. */
     private Rasterizer rasterizer;
 
+    /**
+     * The tile binner. When not null, clipped triangles are binned into screen
+     * tiles and rasterized by a pool of worker threads instead of by the
+     * rasterizer above.
+     */
+    private TileBinner binner;
+
+    /**
+     * The rasterizers and clippers created so far, shared by all
+     * configurations with the same number of attributes, and the tile
+     * binners, one for each fragment processor class. The rasterizers are
+     * keyed by the number of attributes na, or by -1 - na for vectorized
+     * ones, so that toggling the vectorization keeps both.
+     */
+    private final HashMap<Integer, Rasterizer> rasterizers = new HashMap<Integer, Rasterizer>();
+    private final HashMap<Integer, Clipper> clippers = new HashMap<Integer, Clipper>();
+    private final HashMap<Class<?>, TileBinner> binners = new HashMap<Class<?>, TileBinner>();
+
+    /** The number of rasterizer threads; 0 means rasterize on the calling thread. */
+    private int rasterThreads = 0;
+
+    /**
+     * The stage threads. When not null, clipping and drawing run on threads
+     * of their own, fed with the triangles assembled on the calling thread.
+     */
+    private PipelinedStages stages;
+
+    /** If true, clipping and drawing run on the stage threads. */
+    private boolean pipelined = false;
+
+    /**
+     * The triangles assembled but not yet culled, clipped and drawn, when
+     * the stage threads are not in use.
+     */
+    private TriangleBatch batch;
+
+    /**
+     * The batches and the stage threads created so far, by number of
+     * attributes.
+     */
+    private final HashMap<Integer, TriangleBatch> batches = new HashMap<Integer, TriangleBatch>();
+    private final HashMap<Integer, PipelinedStages> allStages = new HashMap<Integer, PipelinedStages>();
+
+    /** The statistics being collected, or null when they are disabled. */
+    private PipelineStatistics statistics;
+
+    /** If true, the rasterizers test pixels with SIMD vectors when possible. */
+    private boolean vectorRasterization = false;
+
+    /** The class of the rasterizer's strategy, kept across configure calls. */
+    private Class<?> strategyClass = BoundingBoxStrategy.class;
+
+    /** The current texture, passed on to the fragment processors. */
+    private Texture texture;
+
     /**
      * The fragment processor. Writes the fragments from the rasterizer into the
      * framebuffer.
@@ -63,6 +137,40 @@ public class Pipeline {
     /** Holds the viewport matrix. */
     public Matrix4f viewportMatrix = new Matrix4f();
 
+    /** Scratch space for the transforms composed onto the modelview matrix. */
+    private final Matrix4f transform = new Matrix4f();
+
+    /** Scratch space for the axes of the frame built by lookAt. */
+    private final Vector3f lookU = new Vector3f(), lookV = new Vector3f(), lookW = new Vector3f();
+
+    /** The number of modelview matrices the matrix stack holds. */
+    public static final int MAX_STACK_DEPTH = 32;
+
+    /** The matrix stack, preallocated, and the number of matrices pushed. */
+    private final Matrix4f[] matrixStack = new Matrix4f[MAX_STACK_DEPTH];
+    private int stackDepth;
+
+    /**
+     * True when the matrices changed since the VP was last notified. The VP
+     * is only notified once the next primitive is drawn, so any number of
+     * transforms in a row cost one update.
+     */
+    private boolean transformsChanged = true;
+
+    /**
+     * The planes bounding the visible part of space in object coordinates,
+     * as (a, b, c, d) with ax + by + cz + d >= 0 on the inside, and the
+     * lengths of their normals (a, b, c).
+     */
+    private final float[][] frustumPlanes = new float[6][4];
+    private final float[] frustumNorms = new float[6];
+
+    /** False when the matrices changed since the planes were computed. */
+    private boolean frustumValid = false;
+
+    /** Scratch space for the product of the three matrices. */
+    private final Matrix4f frustumMatrix = new Matrix4f();
+
     /** Array of all the lights. */
     public static Vector<PointLight> lights;
 
@@ -84,32 +192,462 @@ public class Pipeline {
      */
     public Pipeline(int nx, int ny, Vector<PointLight> lights) {
         framebuffer = new FrameBuffer(nx, ny);
+        for (int i = 0; i < MAX_STACK_DEPTH; i++)
+            matrixStack[i] = new Matrix4f();
         configure(TrivialColorFP.class, ConstColorVP.class);
         Pipeline.lights = lights;
     }
 
     /**
      * Configures the pipeline so that the triangle and fragment processors are
-     * now up to date. Forces some reinitialization in order to set up things like
-     * the clipper and the rasterizer.
+     * now up to date. This is setState(getState(fpClass, vpClass)), so each
+     * combination of classes is only instantiated the first time.
      * 
      * @param fpClass The class of the new fragment shader.
      * @param vpClass The class of the new triangle shader.
      */
     public void configure(Class<?> fpClass, Class<?> vpClass) {
 
+        configure(fpClass, vpClass, strategyClass);
+    }
+
+    /**
+     * Configures the pipeline like configure(Class, Class), and also selects
+     * the strategy the rasterizer uses to find the pixels of each triangle.
+     * The strategy stays selected for later calls of configure(Class, Class).
+     * All strategies produce the same image.
+     * 
+     * @param fpClass The class of the new fragment shader.
+     * @param vpClass The class of the new triangle shader.
+     * @param newStrategyClass The class of the new rasterizer strategy, such as
+     *            BoundingBoxStrategy or ScanlineStrategy.
+     */
+    public void configure(Class<?> fpClass, Class<?> vpClass, Class<?> newStrategyClass) {
+
+        setState(getState(fpClass, vpClass));
+        if (newStrategyClass == strategyClass)
+            return;
         try {
-            Constructor<?> c = fpClass.getConstructor(EMPTY_CLASS_ARRAY);
-            fp = (FragmentProcessor) c.newInstance(EMPTY_OBJECT_ARRAY);
-            rasterizer = new Rasterizer(fp.nAttr(), framebuffer.getWidth(), framebuffer.getHeight());
-            clipper = new Clipper(fp.nAttr());
-            c = vpClass.getConstructor(EMPTY_CLASS_ARRAY);
-            vp = (VertexProcessor) c.newInstance(EMPTY_OBJECT_ARRAY);
-            vp.updateTransforms(this);
+            Constructor<?> c = newStrategyClass.getConstructor(EMPTY_CLASS_ARRAY);
+            rasterizer.setStrategy((RasterStrategy) c.newInstance(EMPTY_OBJECT_ARRAY));
         }
         catch (Exception e) {
             throw new RuntimeException(e);
         }
+        strategyClass = newStrategyClass;
+        if (binner != null)
+            binner.setOptions(rasterizer);
+    }
+
+    /**
+     * Returns the configuration with the given fragment and vertex
+     * processors, for the size of this pipeline's framebuffer. It is created
+     * the first time and cached; later calls return the same object.
+     * 
+     * @param fpClass The class of the fragment shader.
+     * @param vpClass The class of the triangle shader.
+     * @return The configuration.
+     */
+    public PipelineState getState(Class<?> fpClass, Class<?> vpClass) {
+
+        HashMap<Class<?>, PipelineState> byVp = states.get(fpClass);
+        if (byVp == null) {
+            byVp = new HashMap<Class<?>, PipelineState>();
+            states.put(fpClass, byVp);
+        }
+        PipelineState s = byVp.get(vpClass);
+        if (s == null) {
+            s = new PipelineState(fpClass, vpClass, framebuffer.getWidth(), framebuffer.getHeight());
+            byVp.put(vpClass, s);
+        }
+        return s;
+    }
+
+    /**
+     * Switches to a configuration returned by getState. Pending triangles
+     * are drawn with the old one first. Switching creates nothing once every
+     * number of attributes in use has its rasterizer and clipper, so it is
+     * cheap enough to do for every object drawn.
+     * 
+     * @param s The new configuration.
+     */
+    public void setState(PipelineState s) {
+
+        if (s == state)
+            return;
+        if (s.nx != framebuffer.getWidth() || s.ny != framebuffer.getHeight())
+            throw new IllegalArgumentException("The state was created for a framebuffer of another size");
+        finish();
+        state = s;
+        fp = s.fp;
+        vp = s.vp;
+        fp.setTexture(texture);
+        transformsChanged = true;
+
+        int na = fp.nAttr();
+        selectRasterizer();
+        clipper = clippers.get(na);
+        if (clipper == null) {
+            clipper = new Clipper(na, framebuffer.getWidth(), framebuffer.getHeight());
+            clippers.put(na, clipper);
+        }
+        batch = batches.get(na);
+        if (batch == null) {
+            batch = new TriangleBatch(na);
+            batches.put(na, batch);
+        }
+        selectBinner();
+        selectStages();
+    }
+
+    /**
+     * Returns the current configuration.
+     * 
+     * @return The configuration last passed to setState or selected by
+     *         configure.
+     */
+    public PipelineState getState() {
+
+        return state;
+    }
+
+    /**
+     * Selects between serial and tile-binned rasterization. With n > 0 the
+     * triangles are binned into screen tiles of Rasterizer.TILE_SIZE pixels and
+     * rasterized by n worker threads when the frame is finished; with n == 0
+     * every triangle is rasterized immediately on the calling thread. The
+     * resulting image is the same either way.
+     * 
+     * @param n The number of rasterizer threads.
+     */
+    public void setRasterThreads(int n) {
+
+        finish();
+        rasterThreads = Math.max(0, n);
+        disposeBinners();
+        selectBinner();
+    }
+
+    /**
+     * Selects pipelined rendering. The calling thread then only runs the
+     * vertex processor and assembles triangles; the triangles are clipped on
+     * a second thread and set up, rasterized and shaded on a third one, each stage
+     * working on later triangles while the next one finishes earlier ones.
+     * Triangles are drawn in the order they were submitted, so the image is
+     * the same as in serial mode. This can be combined with tile-binned
+     * rasterization, in which case the third thread bins the triangles.
+     * 
+     * @param b True for pipelined rendering.
+     */
+    public void setPipelined(boolean b) {
+
+        finish();
+        pipelined = b;
+        disposeStages();
+        selectStages();
+    }
+
+    /**
+     * Selects the vectorized rasterizer, which evaluates the edge functions,
+     * coverage and depth test of a whole span in the lanes of a SIMD vector
+     * using the jdk.incubator.vector module. Without that module the scalar
+     * rasterizer is kept. The resulting image is the same either way.
+     * 
+     * @param b True to use the vectorized rasterizer when available.
+     */
+    public void setVectorRasterization(boolean b) {
+
+        finish();
+        vectorRasterization = b;
+        selectRasterizer();
+        disposeBinners();
+        selectBinner();
+    }
+
+    /**
+     * Makes the rasterizer for the current fragment processor's number of
+     * attributes and the current vectorization setting current, creating it
+     * the first time, and hands it the options of the previous one.
+     */
+    private void selectRasterizer() {
+
+        int na = fp.nAttr();
+        Integer key = vectorRasterization ? -1 - na : na;
+        Rasterizer r = rasterizers.get(key);
+        if (r == null) {
+            r = Rasterizer.create(na, framebuffer.getWidth(), framebuffer.getHeight(), vectorRasterization);
+            rasterizers.put(key, r);
+        }
+        if (rasterizer != null && r != rasterizer)
+            r.copyOptions(rasterizer);
+        rasterizer = r;
+    }
+
+    /**
+     * Selects which triangles are culled by their winding, right after the
+     * vertex processor and before the clipper. Triangles whose vertices run
+     * counterclockwise on screen are front facing. The default, CULL_BACK,
+     * draws the same triangles as the rasterizer always has; with CULL_NONE
+     * and CULL_FRONT the back faces are reversed so that the rasterizer sees
+     * them counterclockwise.
+     * 
+     * @param newCullMode One of CULL_NONE, CULL_BACK and CULL_FRONT.
+     */
+    public void setCullMode(int newCullMode) {
+
+        finish();
+        cullMode = newCullMode;
+    }
+
+    /**
+     * Selects the small triangle path of the rasterizer, on by default.
+     * Triangles spanning fewer than Rasterizer.SMALL_SIZE pixels in both
+     * directions are then walked row by row without going through the raster
+     * strategy. Both paths produce the same pixels; turning it off is mostly
+     * useful for comparing their speed.
+     * 
+     * @param b True to use the small triangle path where it applies.
+     */
+    public void setSmallTriangles(boolean b) {
+
+        finish();
+        rasterizer.setSmallTriangles(b);
+        if (binner != null)
+            binner.setOptions(rasterizer);
+    }
+
+    /**
+     * Selects multisample antialiasing. With 4 samples per pixel the
+     * rasterizer evaluates coverage and depth at 4 positions in each pixel
+     * and the fragment processor still runs once per covered pixel; the
+     * framebuffer keeps color and depth per sample and averages them into the
+     * image returned by getFrameData(). The framebuffer is replaced, so its
+     * contents are lost.
+     * 
+     * @param n The number of samples per pixel, 1 or 4.
+     */
+    public void setMultisample(int n) {
+
+        finish();
+        n = n > 1 ? 4 : 1;
+        framebuffer = new FrameBuffer(framebuffer.getWidth(), framebuffer.getHeight(), n);
+        rasterizer.setSamples(n);
+        if (binner != null)
+            binner.setOptions(rasterizer);
+    }
+
+    /**
+     * Selects the edge function core of the rasterizer. Fixed point edges snap
+     * the vertices to 28.4 fixed point and apply a top-left fill rule, so
+     * pixels on an edge shared by two triangles are drawn exactly once.
+     * 
+     * @param b True for fixed point edges, false for floating point edges.
+     */
+    public void setFixedPointEdges(boolean b) {
+
+        finish();
+        rasterizer.setFixedPoint(b);
+        if (binner != null)
+            binner.setOptions(rasterizer);
+    }
+
+    /**
+     * Selects the hierarchical bounding box walk of the rasterizer, which
+     * skips blocks of pixels lying outside the triangle and emits blocks lying
+     * inside it without per-pixel coverage tests.
+     * 
+     * @param b True for the hierarchical walk, false for the plain one.
+     */
+    public void setHierarchicalRasterization(boolean b) {
+
+        finish();
+        rasterizer.setHierarchical(b);
+        if (binner != null)
+            binner.setOptions(rasterizer);
+    }
+
+    /**
+     * Selects occlusion culling against the framebuffer's coarse depth buffer.
+     * With fragment processors that use the early depth test, triangles lying
+     * behind everything already drawn under them are rejected before setup,
+     * and the hierarchical walk skips hidden blocks. Scenes drawn roughly
+     * front to back benefit the most.
+     * 
+     * @param b True to cull hidden triangles and blocks.
+     */
+    public void setOcclusionCulling(boolean b) {
+
+        finish();
+        rasterizer.setOcclusionCulling(b);
+        if (binner != null)
+            binner.setOptions(rasterizer);
+    }
+
+    /**
+     * Returns the pixel counters of the rasterizers since the last call, as
+     * {pixels in the triangles' bounding boxes, pixels visited by the walk,
+     * pixels shaded, pixels rejected by the early depth test}. Covered pixels
+     * are the sum of the last two, and the ratio of covered to visited pixels
+     * measures how much of the walk is wasted on pixels outside the triangles.
+     * 
+     * @return The four counters.
+     */
+    public long[] getPixelCounters() {
+
+        finish();
+        long[] counts = new long[4];
+        for (Rasterizer r : rasterizers.values())
+            r.drainCounters(counts);
+        for (TileBinner b : binners.values())
+            b.drainCounters(counts);
+        return counts;
+    }
+
+    /**
+     * Returns the occlusion counters of the rasterizers since the last call,
+     * as {triangles rejected, coarse depth tiles skipped}. In tile-binned mode
+     * a triangle is tested, and may be counted, once for every tile it
+     * overlaps.
+     * 
+     * @return The two counters.
+     */
+    public long[] getOcclusionCounters() {
+
+        finish();
+        long[] counts = new long[2];
+        for (Rasterizer r : rasterizers.values())
+            r.drainOcclusionCounters(counts);
+        for (TileBinner b : binners.values())
+            b.drainOcclusionCounters(counts);
+        return counts;
+    }
+
+    /**
+     * Selects the tile binner for the current fragment processor, creating
+     * it the first time, when tile-binned rasterization is enabled.
+     */
+    private void selectBinner() {
+
+        binner = null;
+        if (rasterThreads == 0)
+            return;
+        binner = binners.get(fp.getClass());
+        if (binner == null) {
+            binner = new TileBinner(fp.getClass(), rasterizer, rasterThreads);
+            binners.put(fp.getClass(), binner);
+        }
+        else
+            binner.setOptions(rasterizer);
+        binner.setTexture(texture);
+    }
+
+    /**
+     * Stops the threads of all tile binners and drops them.
+     */
+    private void disposeBinners() {
+
+        for (TileBinner b : binners.values())
+            b.dispose();
+        binners.clear();
+        binner = null;
+    }
+
+    /**
+     * Enables or disables the collection of statistics. When enabled, the
+     * pipeline counts the vertices and triangles going through each stage,
+     * times the stages and records the areas of the rasterized triangles;
+     * the rasterizers count pixels and depth test results all the time.
+     * When disabled, the pipeline only tests whether it is enabled.
+     * Enabling resets all counters.
+     * 
+     * @param b True to collect statistics.
+     */
+    public void setStatistics(boolean b) {
+
+        finish();
+        statistics = b ? new PipelineStatistics() : null;
+        if (b)
+            drainStatistics(new PipelineStatistics());
+    }
+
+    /**
+     * Returns the statistics collected since statistics were enabled or this
+     * method was last called, and starts collecting anew, so calling it after
+     * every frame gives per-frame statistics. Pending rasterization is
+     * finished first. The pixel counters are shared with getPixelCounters
+     * and getOcclusionCounters, and each of these methods only reports what
+     * happened since any of them was last called.
+     * 
+     * @return The statistics, or null if they are disabled.
+     */
+    public PipelineStatistics getStatistics() {
+
+        if (statistics == null)
+            return null;
+        finish();
+        PipelineStatistics s = new PipelineStatistics();
+        s.set(statistics);
+        statistics.reset();
+        drainStatistics(s);
+        return s;
+    }
+
+    /**
+     * Adds the counters of all rasterizers to the given statistics and resets
+     * them.
+     */
+    private void drainStatistics(PipelineStatistics s) {
+
+        for (Rasterizer r : rasterizers.values())
+            r.drainStatistics(s);
+        for (TileBinner b : binners.values())
+            b.drainStatistics(s);
+    }
+
+    /**
+     * Selects the stage threads for the current number of attributes,
+     * starting them the first time, when pipelined rendering is enabled.
+     */
+    private void selectStages() {
+
+        stages = null;
+        if (!pipelined)
+            return;
+        stages = allStages.get(fp.nAttr());
+        if (stages == null) {
+            stages = new PipelinedStages(this, fp.nAttr());
+            allStages.put(fp.nAttr(), stages);
+        }
+    }
+
+    /**
+     * Stops all stage threads and drops them.
+     */
+    private void disposeStages() {
+
+        for (PipelinedStages s : allStages.values())
+            s.dispose();
+        allStages.clear();
+        stages = null;
+    }
+
+    /**
+     * Completes all pending rasterization. This draws the triangles waiting
+     * in the batch; in pipelined mode it waits for the stage threads to draw
+     * every submitted triangle; in tile-binned mode it runs the binned
+     * triangles through the workers.
+     */
+    public void finish() {
+
+        flushBatch();
+        if (stages != null)
+            stages.drain();
+        if (binner != null) {
+            long t0 = statistics != null ? System.nanoTime() : 0;
+            binner.flush(framebuffer);
+            if (statistics != null)
+                statistics.rasterNanos += System.nanoTime() - t0;
+        }
     }
 
     /**
@@ -141,7 +679,13 @@ public class Pipeline {
      */
     public void setTexture(Texture texture) {
 
+        if (texture == this.texture)
+            return;
+        finish();
+        this.texture = texture;
         fp.setTexture(texture);
+        if (binner != null)
+            binner.setTexture(texture);
     }
 
     /**
@@ -149,6 +693,7 @@ public class Pipeline {
      */
     public void clearFrameBuffer() {
 
+        finish();
         framebuffer.clear(0, 0, 0, 1);
     }
 
@@ -159,73 +704,228 @@ public class Pipeline {
      */
     public byte[] getFrameData() {
 
+        finish();
+        framebuffer.resolve();
         return framebuffer.getData();
     }
 
     /**
-     * Sets the modelview matrix to I, and notifies the VP of the change.
+     * Sets the modelview matrix to I, and marks the VP for notification.
      */
     public void loadIdentity() {
 
+        if (recording != null) {
+            recording.op(DisplayList.LOAD_IDENTITY);
+            return;
+        }
         modelviewMatrix.setIdentity();
         recomputeMatrix();
     }
 
     /**
      * Right multiplies the model view matrix by a rotation for the given axis and
-     * angle, and notifies the VP of the change.
+     * angle, and marks the VP for notification.
      * 
      * @param angle The amount to rotate (in radians).
      * @param axis The axis about which to rotate.
      */
     public void rotate(float angle, Vector3f axis) {
 
-        Matrix4f T = new Matrix4f();
-        T.setRotate(angle, axis);
-        modelviewMatrix.rightCompose(T);
+        if (recording != null) {
+            recording.op(DisplayList.ROTATE);
+            recording.add(angle);
+            recording.add(axis);
+            return;
+        }
+        transform.setRotate(angle, axis);
+        modelviewMatrix.rightCompose(transform);
         recomputeMatrix();
     }
 
     /**
      * Right multiplies the model view matrix by a translation for the given
-     * values, and notifies the VP of the change.
+     * values, and marks the VP for notification.
      * 
      * @param v The translation amount.
      */
     public void translate(Vector3f v) {
 
-        Matrix4f T = new Matrix4f();
-        T.setTranslate(v);
-        modelviewMatrix.rightCompose(T);
+        if (recording != null) {
+            recording.op(DisplayList.TRANSLATE);
+            recording.add(v);
+            return;
+        }
+        transform.setTranslate(v);
+        modelviewMatrix.rightCompose(transform);
         recomputeMatrix();
     }
 
     /**
      * Right multiplies the model view matrix by a scale for the given values, and
-     * notifies the VP of the change.
+     * marks the VP for notification.
      * 
      * @param v The amount to scale by.
      */
     public void scale(Vector3f v) {
 
-        Matrix4f T = new Matrix4f();
-        T.setScale(v);
-        modelviewMatrix.rightCompose(T);
+        if (recording != null) {
+            recording.op(DisplayList.SCALE);
+            recording.add(v);
+            return;
+        }
+        transform.setScale(v);
+        modelviewMatrix.rightCompose(transform);
+        recomputeMatrix();
+    }
+
+    /**
+     * Right multiplies the model view matrix by the given matrix, and marks
+     * the VP for notification.
+     * 
+     * @param m The matrix to multiply by; it is not modified.
+     */
+    public void multMatrix(Matrix4f m) {
+
+        if (recording != null) {
+            recording.op(DisplayList.MULT_MATRIX);
+            recording.add(m);
+            return;
+        }
+        modelviewMatrix.rightCompose(m);
+        recomputeMatrix();
+    }
+
+    /**
+     * Saves a copy of the modelview matrix on the matrix stack, to be
+     * restored by popMatrix. The stack is preallocated and holds
+     * MAX_STACK_DEPTH matrices, so pushing and popping allocate nothing.
+     */
+    public void pushMatrix() {
+
+        if (recording != null) {
+            recording.op(DisplayList.PUSH_MATRIX);
+            return;
+        }
+        if (stackDepth == MAX_STACK_DEPTH)
+            throw new IllegalStateException("Matrix stack overflow");
+        matrixStack[stackDepth++].set(modelviewMatrix);
+    }
+
+    /**
+     * Restores the modelview matrix saved by the matching pushMatrix, and
+     * marks the VP for notification.
+     */
+    public void popMatrix() {
+
+        if (recording != null) {
+            recording.op(DisplayList.POP_MATRIX);
+            return;
+        }
+        if (stackDepth == 0)
+            throw new IllegalStateException("Matrix stack underflow");
+        modelviewMatrix.set(matrixStack[--stackDepth]);
         recomputeMatrix();
     }
 
     /**
-     * Notifies the VP of any changes to the modelview, projection, or viewing
-     * matrices.
+     * Records that the modelview, projection, or viewing matrices changed.
+     * The VP is notified by updateTransforms before the next primitive.
      */
     protected void recomputeMatrix() {
 
-        vp.updateTransforms(this);
+        frustumValid = false;
+        transformsChanged = true;
+    }
+
+    /**
+     * Notifies the VP of the changes to the matrices since the last
+     * primitive, if there were any.
+     */
+    private void validateTransforms() {
+
+        if (transformsChanged) {
+            transformsChanged = false;
+            vp.updateTransforms(this);
+        }
+    }
+
+    /**
+     * Tells whether any part of a sphere may be visible with the current
+     * matrices. Objects for which this returns false can be skipped, since
+     * the clipper would reject all of their triangles anyway.
+     * 
+     * @param center The center of the sphere, in object coordinates.
+     * @param radius The radius of the sphere, in object coordinates.
+     * @return False if the sphere lies entirely outside the view volume.
+     */
+    public boolean isVisible(Vector3f center, float radius) {
+
+        if (!frustumValid)
+            computeFrustumPlanes();
+        for (int i = 0; i < 6; i++) {
+            float[] p = frustumPlanes[i];
+            if (p[0] * center.x + p[1] * center.y + p[2] * center.z + p[3] < -radius * frustumNorms[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Tells whether any part of an axis-aligned box may be visible with the
+     * current matrices, like isVisible(Vector3f, float).
+     * 
+     * @param min The corner of the box with the smallest coordinates, in
+     *            object coordinates.
+     * @param max The corner of the box with the largest coordinates.
+     * @return False if the box lies entirely outside the view volume.
+     */
+    public boolean isVisible(Vector3f min, Vector3f max) {
+
+        if (!frustumValid)
+            computeFrustumPlanes();
+        for (int i = 0; i < 6; i++) {
+            // Only the corner furthest inside the plane needs testing
+            float[] p = frustumPlanes[i];
+            float x = p[0] >= 0 ? max.x : min.x;
+            float y = p[1] >= 0 ? max.y : min.y;
+            float z = p[2] >= 0 ? max.z : min.z;
+            if (p[0] * x + p[1] * y + p[2] * z + p[3] < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Extracts the planes of the view volume from the rows of the product of
+     * the viewport, projection and modelview matrices. They are the planes
+     * the clipper rejects triangles by: the near and far planes, and the
+     * sides of the screen widened by the clipper's one pixel margin.
+     */
+    private void computeFrustumPlanes() {
+
+        frustumMatrix.set(modelviewMatrix);
+        frustumMatrix.leftCompose(projectionMatrix);
+        frustumMatrix.leftCompose(viewportMatrix);
+        float[][] m = frustumMatrix.m;
+        float xMin = -1, xMax = framebuffer.getWidth(), yMin = -1, yMax = framebuffer.getHeight();
+        for (int j = 0; j < 4; j++) {
+            frustumPlanes[0][j] = m[0][j] - xMin * m[3][j];
+            frustumPlanes[1][j] = xMax * m[3][j] - m[0][j];
+            frustumPlanes[2][j] = m[1][j] - yMin * m[3][j];
+            frustumPlanes[3][j] = yMax * m[3][j] - m[1][j];
+            frustumPlanes[4][j] = m[2][j];
+            frustumPlanes[5][j] = m[3][j] - m[2][j];
+        }
+        for (int i = 0; i < 6; i++) {
+            float[] p = frustumPlanes[i];
+            frustumNorms[i] = (float) Math.sqrt(p[0] * p[0] + p[1] * p[1] + p[2] * p[2]);
+        }
+        frustumValid = true;
     }
 
     /**
      * Sets the modelview matrix to be equal to the indicated viewing matrix, and
-     * notifies the VP of the change.
+     * marks the VP for notification.
      * 
      * @param eye The location of the eye.
      * @param target The target at which the eye is looking.
@@ -234,23 +934,30 @@ public class Pipeline {
      */
     public void lookAt(Vector3f eye, Vector3f target, Vector3f up) {
 
-        Matrix4f T = new Matrix4f();
-        Vector3f w = new Vector3f();
+        if (recording != null) {
+            recording.op(DisplayList.LOOK_AT);
+            recording.add(eye);
+            recording.add(target);
+            recording.add(up);
+            return;
+        }
+
+        Vector3f w = lookW;
         w.sub(eye, target);
         w.normalize();
-        Vector3f u = new Vector3f();
+        Vector3f u = lookU;
         u.cross(up, w);
         u.normalize();
-        Vector3f v = new Vector3f();
+        Vector3f v = lookV;
         v.cross(w, u);
-        T.setCtoF(u, v, w, eye);
-        modelviewMatrix.rightCompose(T);
+        transform.setCtoF(u, v, w, eye);
+        modelviewMatrix.rightCompose(transform);
         recomputeMatrix();
     }
 
     /**
      * Sets the projection matrix to represent the indicated viewing volume, and
-     * notifies the VP of the change.
+     * marks the VP for notification.
      * 
      * @param l The left extent of the view volume.
      * @param r The right extent of the view volume.
@@ -261,6 +968,17 @@ public class Pipeline {
      */
     public void frustum(float l, float r, float b, float t, float n, float f) {
 
+        if (recording != null) {
+            recording.op(DisplayList.FRUSTUM);
+            recording.add(l);
+            recording.add(r);
+            recording.add(b);
+            recording.add(t);
+            recording.add(n);
+            recording.add(f);
+            return;
+        }
+
         projectionMatrix.setIdentity();
         projectionMatrix.m[0][0] = 2 * n / (r - l);
         projectionMatrix.m[0][2] = (r + l) / (r - l);
@@ -274,8 +992,8 @@ public class Pipeline {
     }
 
     /**
-     * Sets the viewport matrix to the indicated window on screen, and notifies
-     * the VP of the change.
+     * Sets the viewport matrix to the indicated window on screen, and marks
+     * the VP for notification.
      * 
      * @param x The x location of the window.
      * @param y The y location of the window.
@@ -284,6 +1002,15 @@ public class Pipeline {
      */
     public void viewport(int x, int y, int w, int h) {
 
+        if (recording != null) {
+            recording.op(DisplayList.VIEWPORT);
+            recording.op(x);
+            recording.op(y);
+            recording.op(w);
+            recording.op(h);
+            return;
+        }
+
         float cx = x + 0.5f * w, cy = y + 0.5f * h;
         viewportMatrix.setIdentity();
         viewportMatrix.m[0][0] = 0.5f * w;
@@ -299,9 +1026,8 @@ public class Pipeline {
     /** Cache of processed vertices for primitive assembly. */
     private final Vertex[] vertexCache = { new Vertex(), new Vertex(), new Vertex(), new Vertex() };
 
-    /** A static variable to save allocation costs. */
-    private final Vertex[] triangle1 = { new Vertex(), new Vertex(), new Vertex() };
-    private final Vertex[] triangle2 = { new Vertex(), new Vertex(), new Vertex() };
+    /** A back-facing triangle with its winding reversed. */
+    private final Vertex[] reversed = new Vertex[3];
 
     // 
     int vertexIndex, stripParity;
@@ -310,13 +1036,31 @@ public class Pipeline {
      * Sets the pipeline mode to render a particular type of primitive.
      */
     public void begin(int primType) {
+        if (recording != null) {
+            recording.op(DisplayList.BEGIN);
+            recording.op(primType);
+            return;
+        }
         mode = primType;
         vertexIndex = 0;
         stripParity = 0;
     }
 
     public void vertex(Vector3f v, Color3f c, Vector3f n, Vector2f t) {
-        vp.vertex(v, c, n, t, vertexCache[vertexIndex]);
+        if (recording != null) {
+            recording.op(DisplayList.VERTEX | DisplayList.flags(c, n, t));
+            recording.add(v, c, n, t);
+            return;
+        }
+        validateTransforms();
+        if (statistics != null) {
+            long t0 = System.nanoTime();
+            vp.vertex(v, c, n, t, vertexCache[vertexIndex]);
+            statistics.vertexNanos += System.nanoTime() - t0;
+            statistics.verticesProcessed++;
+        }
+        else
+            vp.vertex(v, c, n, t, vertexCache[vertexIndex]);
         switch (mode) {
         case TRIANGLES:
             if (vertexIndex == 2) {
@@ -366,6 +1110,10 @@ public class Pipeline {
     }
 
     public void end() {
+        if (recording != null) {
+            recording.op(DisplayList.END);
+            return;
+        }
         mode = MODE_NONE;
     }
 
@@ -385,39 +1133,773 @@ public class Pipeline {
      */
     public void renderTriangle(Vector3f[] v, Color3f[] c, Vector3f[] n, Vector2f[] t) {
 
+        if (recording != null) {
+            recording.op(DisplayList.TRIANGLE | DisplayList.flags(c, n, t));
+            for (int i = 0; i < 3; i++)
+                recording.add(v[i], c == null ? null : c[i], n == null ? null : n[i], t == null ? null : t[i]);
+            return;
+        }
+
         // Send to VP, get back attributes to interpolate
-        vp.triangle(v, c, n, t, vertexCache);
+        validateTransforms();
+        if (statistics != null) {
+            long t0 = System.nanoTime();
+            vp.triangle(v, c, n, t, vertexCache);
+            statistics.vertexNanos += System.nanoTime() - t0;
+            statistics.verticesProcessed += 3;
+        }
+        else
+            vp.triangle(v, c, n, t, vertexCache);
 
         renderTriangle(vertexCache);
     }
 
+    /** The buffer used by drawElements, whose vertices only last one call. */
+    private final VertexBuffer immediate = new VertexBuffer();
+
     /**
-     * Renders a triangle from already-processed vertices.
+     * The buffer drawInstanced draws through: it shares the arrays of the
+     * retained buffer being drawn but has its own cache, refilled for each
+     * instance, so that the retained buffer's cache stays valid.
+     */
+    private final VertexBuffer instances = new VertexBuffer();
+
+    /** The buffers created by createBuffer; the handles are indices into this list. */
+    private final ArrayList<VertexBuffer> buffers = new ArrayList<VertexBuffer>();
+
+    /** Scratch space for the inputs of the vertex processor. */
+    private final Vector3f elementV = new Vector3f();
+    private final Vector3f elementN = new Vector3f();
+    private final Color3f elementC = new Color3f();
+    private final Vector2f elementT = new Vector2f();
+
+    /** The vertices of the triangle being assembled from a buffer. */
+    private final Vertex[] elementTriangle = new Vertex[3];
+
+    /** The color of vertices drawn without colors. */
+    private static final Color3f WHITE = new Color3f(1, 1, 1);
+
+    /**
+     * Renders an indexed triangle list. Every 3 entries of indices make a
+     * triangle, each entry selecting a vertex from the attribute arrays.
+     * Each vertex is sent to the vertex processor only once per call, the
+     * first time a triangle uses it; the other triangles sharing it reuse the
+     * processed result. The image is the same as rendering the triangles one
+     * by one with renderTriangle.
      * 
-     * @param v The 3 vertices of the triangle.
-     * @param c The 3 colors of the triangle - one for each vertex.
-     * @param n The 3 normals of the triangle - one for each vertex.
-     * @param t The 3 texture coordinates of the triangle - one for each vertex.
+     * @param positions The vertex positions in 3D object coordinates, 3
+     *            floats per vertex.
+     * @param normals The vertex normals, 3 floats per vertex, or null if the
+     *            vertex processor does not use normals.
+     * @param colors The vertex colors, 3 floats per vertex, or null for
+     *            white vertices.
+     * @param texcoords The texture coordinates, 2 floats per vertex, or null
+     *            if the vertex processor does not use them.
+     * @param indices The vertex indices of the triangles.
+     */
+    public void drawElements(float[] positions, float[] normals, float[] colors, float[] texcoords, int[] indices) {
+
+        if (recording != null) {
+            int handle = createBuffer(positions, normals, colors, texcoords, indices);
+            recording.own(handle);
+            recording.op(DisplayList.DRAW_BUFFER);
+            recording.op(handle);
+            return;
+        }
+
+        validateTransforms();
+        immediate.setData(positions, normals, colors, texcoords, indices);
+        immediate.invalidate();
+        drawBuffer(immediate);
+
+        // Do not hold on to the caller's arrays
+        immediate.setData(EMPTY_FLOAT_ARRAY, null, null, null, EMPTY_INT_ARRAY);
+    }
+
+    /**
+     * Creates a retained buffer holding an indexed triangle list, with the
+     * arrays described in drawElements. The arrays are copied. Drawing the
+     * buffer with drawBuffer gives the same image as drawElements, but the
+     * outputs of the vertex processor are kept with the buffer and reused by
+     * later draws until the modelview, projection or viewport matrix or the
+     * class of the vertex processor changes. Switching fragment processors or
+     * redrawing an unchanged view then skips vertex processing entirely.
+     * 
+     * @param positions The vertex positions in 3D object coordinates.
+     * @param normals The vertex normals, or null.
+     * @param colors The vertex colors, or null for white vertices.
+     * @param texcoords The texture coordinates, or null.
+     * @param indices The vertex indices of the triangles.
+     * @return The handle of the new buffer.
+     */
+    public int createBuffer(float[] positions, float[] normals, float[] colors, float[] texcoords, int[] indices) {
+
+        VertexBuffer b = new VertexBuffer();
+        b.setData(positions.clone(), normals == null ? null : normals.clone(), colors == null ? null : colors.clone(), texcoords == null ? null : texcoords.clone(), indices.clone());
+        b.computeBounds();
+        buffers.add(b);
+        return buffers.size() - 1;
+    }
+
+    /**
+     * Renders a buffer created by createBuffer.
+     * 
+     * @param handle The handle of the buffer.
+     */
+    public void drawBuffer(int handle) {
+
+        if (recording != null) {
+            recording.op(DisplayList.DRAW_BUFFER);
+            recording.op(handle);
+            return;
+        }
+
+        validateTransforms();
+        VertexBuffer b = buffers.get(handle);
+        b.validate(vp.getClass(), modelviewMatrix, projectionMatrix, viewportMatrix);
+        drawBuffer(b);
+    }
+
+    /** The modelview matrix of the instance being drawn by drawInstanced. */
+    private final Matrix4f instanceModelview = new Matrix4f();
+
+    /** The color replacing the vertex colors of the instance being drawn, or null. */
+    private Color3f instanceColor;
+
+    /**
+     * The data the vertex processor prepared from the object space inputs of
+     * each vertex of the buffer being drawn by drawInstanced, preparedSize
+     * floats per vertex, or null outside drawInstanced.
+     */
+    private float[] instancePrepared;
+
+    /** Scratch space reused for instancePrepared. */
+    private float[] preparedData = EMPTY_FLOAT_ARRAY;
+
+    private int preparedSize;
+
+    /** Scratch space for the bounding sphere of an instance. */
+    private final Vector4f instanceCenter = new Vector4f();
+    private final Vector3f instanceCenter3 = new Vector3f();
+
+    /**
+     * Renders many instances of a buffer created by createBuffer, each one
+     * transformed by its own matrix, which is right multiplied onto the
+     * modelview matrix for that instance only. The vertex processor is handed
+     * each instance's modelview matrix through setModelview rather than
+     * having the pipeline's matrices changed, and the attribute arrays are read
+     * directly from the buffer. The part of the vertex processing that only
+     * depends on a vertex's object space position and normal, as reported by
+     * VertexProcessor.preparedSize, is done once per call; only the transform
+     * and the lighting are redone for every instance. The outputs kept with
+     * the buffer for drawBuffer are neither used nor disturbed. Instances whose bounding sphere is outside the view
+     * volume are skipped.
+     * 
+     * @param handle The handle of the buffer.
+     * @param instanceTransforms The transform of each instance.
+     * @param instanceColors The color used for all vertices of each instance,
+     *            or null to use the colors of the buffer.
+     */
+    public void drawInstanced(int handle, Matrix4f[] instanceTransforms, Color3f[] instanceColors) {
+
+        if (recording != null) {
+            recording.op(DisplayList.DRAW_INSTANCED | (instanceColors != null ? DisplayList.HAS_COLOR : 0));
+            recording.op(handle);
+            recording.op(instanceTransforms.length);
+            for (int i = 0; i < instanceTransforms.length; i++) {
+                recording.add(instanceTransforms[i]);
+                if (instanceColors != null)
+                    recording.add(instanceColors[i]);
+            }
+            return;
+        }
+
+        VertexBuffer b = beginInstances(handle);
+        for (int i = 0; i < instanceTransforms.length; i++)
+            drawInstance(b, instanceTransforms[i], instanceColors != null ? instanceColors[i] : null);
+        endInstances();
+    }
+
+    /**
+     * Starts a drawInstanced call.
+     * 
+     * @param handle The handle of the buffer to draw.
+     * @return The buffer to draw the instances with.
+     */
+    private VertexBuffer beginInstances(int handle) {
+
+        validateTransforms();
+        VertexBuffer b = buffers.get(handle);
+        instances.setData(b.positions, b.normals, b.colors, b.texcoords, b.indices);
+        instances.center.set(b.center);
+        instances.radius = b.radius;
+
+        preparedSize = vp.preparedSize();
+        if (preparedSize > 0) {
+            int nVerts = b.positions.length / 3;
+            if (preparedData.length < nVerts * preparedSize)
+                preparedData = new float[nVerts * preparedSize];
+            long t0 = statistics != null ? System.nanoTime() : 0;
+            float[] positions = b.positions, normals = b.normals;
+            for (int i = 0; i < nVerts; i++) {
+                elementV.set(positions[3 * i], positions[3 * i + 1], positions[3 * i + 2]);
+                if (normals != null)
+                    elementN.set(normals[3 * i], normals[3 * i + 1], normals[3 * i + 2]);
+                vp.prepare(elementV, normals != null ? elementN : null, preparedData, i * preparedSize);
+            }
+            if (statistics != null)
+                statistics.vertexNanos += System.nanoTime() - t0;
+            instancePrepared = preparedData;
+        }
+        return instances;
+    }
+
+    /**
+     * Draws one instance of a buffer for drawInstanced, unless its bounding
+     * sphere is outside the view volume.
+     * 
+     * @param b The buffer.
+     * @param t The transform of the instance.
+     * @param color The color of all vertices of the instance, or null.
+     */
+    private void drawInstance(VertexBuffer b, Matrix4f t, Color3f color) {
+
+        instanceCenter.set(b.center.x, b.center.y, b.center.z, 1);
+        t.rightMultiply(instanceCenter);
+        instanceCenter3.set(instanceCenter.x, instanceCenter.y, instanceCenter.z);
+        if (!isVisible(instanceCenter3, b.radius * maxScale(t)))
+            return;
+
+        instanceModelview.set(modelviewMatrix);
+        instanceModelview.rightCompose(t);
+        vp.setModelview(this, instanceModelview);
+        instanceColor = color;
+        b.invalidate();
+        drawBuffer(b);
+    }
+
+    /**
+     * Finishes a drawInstanced call.
+     */
+    private void endInstances() {
+
+        instanceColor = null;
+        instancePrepared = null;
+        instances.setData(EMPTY_FLOAT_ARRAY, null, null, null, EMPTY_INT_ARRAY);
+
+        // The VP still has the modelview matrix of the last instance
+        transformsChanged = true;
+    }
+
+    /**
+     * Returns a bound on the factor by which a transform stretches lengths,
+     * from the largest absolute column and row sums of its upper 3x3 part.
+     * It is exact for translations and axis-aligned scales.
+     */
+    private static float maxScale(Matrix4f t) {
+
+        float cols = 0, rows = 0;
+        for (int i = 0; i < 3; i++) {
+            cols = Math.max(cols, Math.abs(t.m[0][i]) + Math.abs(t.m[1][i]) + Math.abs(t.m[2][i]));
+            rows = Math.max(rows, Math.abs(t.m[i][0]) + Math.abs(t.m[i][1]) + Math.abs(t.m[i][2]));
+        }
+        return (float) Math.sqrt(cols * rows);
+    }
+
+    /**
+     * Releases a buffer created by createBuffer. Its handle must not be used
+     * any more.
+     * 
+     * @param handle The handle of the buffer.
+     */
+    public void deleteBuffer(int handle) {
+
+        buffers.set(handle, null);
+    }
+
+    /** The display lists; their ids are indices into this list. */
+    private final ArrayList<DisplayList> lists = new ArrayList<DisplayList>();
+
+    /** The display list being recorded, or null. */
+    private DisplayList recording;
+
+    /** Scratch space for the vertices of a display list being replayed. */
+    private final Vector3f[] listV = { new Vector3f(), new Vector3f(), new Vector3f() };
+    private final Vector3f[] listN = { new Vector3f(), new Vector3f(), new Vector3f() };
+    private final Color3f[] listC = { new Color3f(), new Color3f(), new Color3f() };
+    private final Vector2f[] listT = { new Vector2f(), new Vector2f(), new Vector2f() };
+    private final Matrix4f listMatrix = new Matrix4f();
+
+    /**
+     * Starts recording a display list. Until endList is called, the calls to
+     * loadIdentity, rotate, translate, scale, multMatrix, pushMatrix,
+     * popMatrix, lookAt, frustum, viewport, begin, vertex, end,
+     * renderTriangle, drawElements, drawBuffer, drawInstanced and callList are
+     * not executed but appended to the list, with copies of their arguments.
+     * The arrays of drawElements are copied into a new retained buffer, as
+     * with createBuffer, which belongs to the list and is deleted with it.
+     * All other calls, such as those changing the configuration, are executed
+     * as usual. Other buffers are recorded by handle, so a buffer drawn by a
+     * list must not be deleted while the list is in use.
+     * 
+     * @return The id of the new list.
+     */
+    public int beginList() {
+
+        if (recording != null)
+            throw new IllegalStateException("Display lists cannot be nested");
+        recording = new DisplayList();
+        lists.add(recording);
+        return lists.size() - 1;
+    }
+
+    /**
+     * Finishes recording the display list started by beginList.
+     */
+    public void endList() {
+
+        if (recording == null)
+            throw new IllegalStateException("No display list is being recorded");
+        recording.trim();
+        recording = null;
+    }
+
+    /**
+     * Replays a display list, making the recorded calls in order with the
+     * recorded arguments. Replaying allocates nothing, and the image is the
+     * same as making the calls directly.
+     * 
+     * @param id The id of the list, as returned by beginList.
+     */
+    public void callList(int id) {
+
+        if (recording != null) {
+            recording.op(DisplayList.CALL_LIST);
+            recording.op(id);
+            return;
+        }
+
+        DisplayList l = lists.get(id);
+        int[] ops = l.ops;
+        float[] data = l.data;
+        int d = 0;
+        for (int i = 0; i < l.nOps; i++) {
+            int op = ops[i];
+            switch (op & DisplayList.OP_MASK) {
+            case DisplayList.LOAD_IDENTITY:
+                loadIdentity();
+                break;
+            case DisplayList.ROTATE:
+                listV[0].set(data[d + 1], data[d + 2], data[d + 3]);
+                rotate(data[d], listV[0]);
+                d += 4;
+                break;
+            case DisplayList.TRANSLATE:
+                listV[0].set(data[d], data[d + 1], data[d + 2]);
+                translate(listV[0]);
+                d += 3;
+                break;
+            case DisplayList.SCALE:
+                listV[0].set(data[d], data[d + 1], data[d + 2]);
+                scale(listV[0]);
+                d += 3;
+                break;
+            case DisplayList.BEGIN:
+                begin(ops[++i]);
+                break;
+            case DisplayList.VERTEX:
+                d = listVertex(data, d, op, 0);
+                vertex(listV[0], (op & DisplayList.HAS_COLOR) != 0 ? listC[0] : null, (op & DisplayList.HAS_NORMAL) != 0 ? listN[0] : null, (op & DisplayList.HAS_TEXCOORD) != 0 ? listT[0] : null);
+                break;
+            case DisplayList.END:
+                end();
+                break;
+            case DisplayList.TRIANGLE:
+                for (int k = 0; k < 3; k++)
+                    d = listVertex(data, d, op, k);
+                renderTriangle(listV, (op & DisplayList.HAS_COLOR) != 0 ? listC : null, (op & DisplayList.HAS_NORMAL) != 0 ? listN : null, (op & DisplayList.HAS_TEXCOORD) != 0 ? listT : null);
+                break;
+            case DisplayList.CALL_LIST:
+                callList(ops[++i]);
+                break;
+            case DisplayList.DRAW_BUFFER:
+                drawBuffer(ops[++i]);
+                break;
+            case DisplayList.PUSH_MATRIX:
+                pushMatrix();
+                break;
+            case DisplayList.POP_MATRIX:
+                popMatrix();
+                break;
+            case DisplayList.MULT_MATRIX:
+                for (int r = 0; r < 4; r++)
+                    for (int c = 0; c < 4; c++)
+                        listMatrix.m[r][c] = data[d++];
+                multMatrix(listMatrix);
+                break;
+            case DisplayList.DRAW_INSTANCED:
+                d = listInstances(ops[i + 1], ops[i + 2], (op & DisplayList.HAS_COLOR) != 0, data, d);
+                i += 2;
+                break;
+            case DisplayList.LOOK_AT:
+                for (int k = 0; k < 3; k++) {
+                    listV[k].set(data[d], data[d + 1], data[d + 2]);
+                    d += 3;
+                }
+                lookAt(listV[0], listV[1], listV[2]);
+                break;
+            case DisplayList.FRUSTUM:
+                frustum(data[d], data[d + 1], data[d + 2], data[d + 3], data[d + 4], data[d + 5]);
+                d += 6;
+                break;
+            case DisplayList.VIEWPORT:
+                viewport(ops[i + 1], ops[i + 2], ops[i + 3], ops[i + 4]);
+                i += 4;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Reads a recorded vertex into one of the replay scratch slots.
+     * 
+     * @param data The float operands of the list.
+     * @param d The offset of the vertex in data.
+     * @param op The opcode, whose flags tell which attributes were recorded.
+     * @param k The scratch slot to fill.
+     * @return The offset just past the vertex.
+     */
+    private int listVertex(float[] data, int d, int op, int k) {
+
+        listV[k].set(data[d], data[d + 1], data[d + 2]);
+        d += 3;
+        if ((op & DisplayList.HAS_COLOR) != 0) {
+            listC[k].set(data[d], data[d + 1], data[d + 2]);
+            d += 3;
+        }
+        if ((op & DisplayList.HAS_NORMAL) != 0) {
+            listN[k].set(data[d], data[d + 1], data[d + 2]);
+            d += 3;
+        }
+        if ((op & DisplayList.HAS_TEXCOORD) != 0) {
+            listT[k].set(data[d], data[d + 1]);
+            d += 2;
+        }
+        return d;
+    }
+
+    /**
+     * Replays a recorded drawInstanced call.
+     * 
+     * @param handle The handle of the buffer.
+     * @param count The number of instances.
+     * @param hasColors True if a color was recorded after each transform.
+     * @param data The float operands of the list.
+     * @param d The offset of the first transform in data.
+     * @return The offset just past the instances.
+     */
+    private int listInstances(int handle, int count, boolean hasColors, float[] data, int d) {
+
+        VertexBuffer b = beginInstances(handle);
+        for (int k = 0; k < count; k++) {
+            for (int r = 0; r < 4; r++)
+                for (int c = 0; c < 4; c++)
+                    listMatrix.m[r][c] = data[d++];
+            if (hasColors) {
+                listC[0].set(data[d], data[d + 1], data[d + 2]);
+                d += 3;
+            }
+            drawInstance(b, listMatrix, hasColors ? listC[0] : null);
+        }
+        endInstances();
+        return d;
+    }
+
+    /**
+     * Releases a display list, together with the buffers created for the
+     * drawElements calls recorded in it. Its id must not be used any more.
+     * 
+     * @param id The id of the list.
+     */
+    public void deleteList(int id) {
+
+        DisplayList l = lists.get(id);
+        if (l == null)
+            return;
+        if (l == recording)
+            throw new IllegalStateException("The display list is still being recorded");
+        for (int i = 0; i < l.nOwned; i++)
+            deleteBuffer(l.owned[i]);
+        lists.set(id, null);
+    }
+
+    /**
+     * Assembles the triangles of a buffer from its processed vertices, running
+     * the vertices not processed under the buffer's current stamp through the
+     * vertex processor first.
+     */
+    private void drawBuffer(VertexBuffer b) {
+
+        int[] indices = b.indices;
+        for (int i = 0; i + 2 < indices.length; i += 3) {
+            for (int k = 0; k < 3; k++)
+                elementTriangle[k] = element(b, indices[i + k]);
+            renderTriangle(elementTriangle);
+        }
+    }
+
+    /**
+     * Returns the processed vertex with the given index of a buffer.
+     */
+    private Vertex element(VertexBuffer b, int index) {
+
+        Vertex out = b.cache[index];
+        if (b.cacheStamp[index] == b.stamp)
+            return out;
+        b.cacheStamp[index] = b.stamp;
+
+        float[] positions = b.positions, normals = b.normals, colors = b.colors, texcoords = b.texcoords;
+        elementV.set(positions[3 * index], positions[3 * index + 1], positions[3 * index + 2]);
+        if (normals != null)
+            elementN.set(normals[3 * index], normals[3 * index + 1], normals[3 * index + 2]);
+        if (instanceColor != null)
+            elementC.set(instanceColor);
+        else if (colors != null)
+            elementC.set(colors[3 * index], colors[3 * index + 1], colors[3 * index + 2]);
+        if (texcoords != null)
+            elementT.set(texcoords[2 * index], texcoords[2 * index + 1]);
+        Color3f c = instanceColor != null || colors != null ? elementC : WHITE;
+        Vector3f n = normals != null ? elementN : null;
+        Vector2f t = texcoords != null ? elementT : null;
+        long t0 = statistics != null ? System.nanoTime() : 0;
+        if (instancePrepared != null)
+            vp.vertex(instancePrepared, index * preparedSize, elementV, c, n, t, out);
+        else
+            vp.vertex(elementV, c, n, t, out);
+        if (statistics != null) {
+            statistics.vertexNanos += System.nanoTime() - t0;
+            statistics.verticesProcessed++;
+        }
+        return out;
+    }
+
+    /**
+     * Renders a triangle from already-processed vertices. The triangle is
+     * added to the batch, which is culled, clipped and drawn once it is full,
+     * or in pipelined mode handed to the clip stage.
+     * 
+     * @param vertices The 3 vertices of the triangle.
      */
     private void renderTriangle(Vertex[] vertices) {
 
-        // See how many "unclipped" triangles we have
-        int numberOfTriangles = clipper.clip(vertices, triangle1, triangle2);
+        if (stages != null)
+            stages.submit(vertices);
+        else if (batch.add(vertices))
+            flushBatch();
+    }
+
+    /**
+     * Culls, clips and draws the triangles of the batch, in the order they
+     * were added, and empties it. The winding test, the clipper's outcodes
+     * and the perspective division run over the whole batch at once. The
+     * triangles needing no clipping are then set up straight from the batch
+     * arrays, and only those that must be clipped are copied out.
+     */
+    private void flushBatch() {
 
-        // If we have none, just stop
-        if (numberOfTriangles == 0)
+        if (batch == null || batch.size == 0)
             return;
 
-        // If we have two...render the second one
-        if (numberOfTriangles == 2) {
-            // Rasterize triangle, sending results to fp
-            rasterizer.rasterize(triangle2, fp, framebuffer);
+        long t0 = 0;
+        if (statistics != null) {
+            t0 = System.nanoTime();
+            statistics.trianglesSubmitted += batch.size;
         }
 
-        // And if we have 1 or 2, render the first one
+        batch.computeDeterminants();
+        int nLive = 0;
+        for (int i = 0; i < batch.size; i++)
+            if (!isCulled(batch.det[i]))
+                batch.live[nLive++] = i;
+        batch.nLive = nLive;
+        if (statistics != null)
+            statistics.trianglesCulled += batch.size - nLive;
+
+        clipper.classify(batch);
+        batch.project();
+        for (int k = 0; k < nLive; k++) {
+            int i = batch.live[k];
+            float det = batch.det[i];
+            int planes = batch.clipPlanes[i];
+            if (planes < 0) {
+                if (statistics != null)
+                    statistics.trianglesRejected++;
+            }
+            else if (planes == 0) {
+                if (statistics != null)
+                    statistics.clipNanos += System.nanoTime() - t0;
+                drawTriangle(batch, i, det < 0);
+                if (statistics != null)
+                    t0 = System.nanoTime();
+            }
+            else {
+                batch.get(i, batch.triangle, det < 0);
+                t0 = clipCounterclockwise(batch.triangle, t0);
+            }
+        }
+        batch.clear();
+
+        if (statistics != null)
+            statistics.clipNanos += System.nanoTime() - t0;
+    }
+
+    /**
+     * Tells whether a triangle is discarded by the cull mode.
+     * 
+     * @param det The winding determinant of the triangle.
+     * @return True if the triangle is culled.
+     */
+    private boolean isCulled(float det) {
+
+        return cullMode == CULL_BACK ? det < 0 : cullMode == CULL_FRONT && det > 0;
+    }
+
+    /**
+     * Culls and clips a triangle and draws the pieces, or in pipelined mode
+     * hands them to the raster stage. Runs on the clip stage's thread in
+     * pipelined mode.
+     * 
+     * @param vertices The 3 vertices of the triangle.
+     */
+    void clipTriangle(Vertex[] vertices) {
+
+        long t0 = 0;
+        if (statistics != null) {
+            t0 = System.nanoTime();
+            statistics.trianglesSubmitted++;
+        }
+
+        // Winding in homogeneous screen space: the determinant of the rows
+        // (x, y, w) has the sign of the screen area times that of w0 w1 w2,
+        // which makes it the facing of the triangle seen from the eye, valid
+        // even for vertices behind it.
+        Vector4f p0 = vertices[0].v, p1 = vertices[1].v, p2 = vertices[2].v;
+        float det = p0.x * (p1.y * p2.w - p2.y * p1.w) - p0.y * (p1.x * p2.w - p2.x * p1.w) + p0.w * (p1.x * p2.y - p2.x * p1.y);
+        if (isCulled(det)) {
+            if (statistics != null) {
+                statistics.trianglesCulled++;
+                statistics.clipNanos += System.nanoTime() - t0;
+            }
+            return;
+        }
+
+        // The rasterizer only draws counterclockwise triangles. The first
+        // vertex stays first so flat attributes are unchanged.
+        if (det < 0) {
+            reversed[0] = vertices[0];
+            reversed[1] = vertices[2];
+            reversed[2] = vertices[1];
+            vertices = reversed;
+        }
+
+        t0 = clipCounterclockwise(vertices, t0);
+        if (statistics != null)
+            statistics.clipNanos += System.nanoTime() - t0;
+    }
+
+    /**
+     * Clips a triangle that passed culling and draws the pieces, or in
+     * pipelined mode hands them to the raster stage. The time spent drawing
+     * is not counted as clipping time.
+     * 
+     * @param vertices The 3 vertices of the triangle, counterclockwise.
+     * @param t0 The time clipping started, when statistics are enabled.
+     * @return The time clipping resumes after drawing.
+     */
+    private long clipCounterclockwise(Vertex[] vertices, long t0) {
+
+        // See how many "unclipped" triangles we have
+        int numberOfTriangles = clipper.clip(vertices);
+
+        if (statistics != null) {
+            if (numberOfTriangles == 0)
+                statistics.trianglesRejected++;
+            else if (clipper.wasClipped())
+                statistics.trianglesClipped++;
+            statistics.clipNanos += System.nanoTime() - t0;
+        }
+
+        for (int i = 0; i < numberOfTriangles; i++) {
+            if (stages != null)
+                stages.clipped(clipper.getTriangle(i));
+            else
+                drawTriangle(clipper.getTriangle(i));
+        }
+        return statistics != null ? System.nanoTime() : t0;
+    }
+
+    /**
+     * Rasterizes a clipped triangle. Runs on the raster stage's thread in
+     * pipelined mode.
+     * 
+     * @param vertices The 3 vertices of the triangle.
+     */
+    void drawTriangle(Vertex[] vertices) {
+
+        long t0 = 0;
+        if (statistics != null) {
+            t0 = System.nanoTime();
+            statistics.trianglesRasterized++;
+            statistics.addArea(screenArea(vertices));
+        }
+
+        // In tile-binned mode the triangles are only stored for now
+        if (binner != null)
+            binner.add(vertices);
+        else
+            rasterizer.rasterize(vertices, fp, framebuffer);
+
+        if (statistics != null)
+            statistics.rasterNanos += System.nanoTime() - t0;
+    }
+
+    /**
+     * Rasterizes a triangle of the batch that needs no clipping, like
+     * drawTriangle(Vertex[]) but reading it from the batch arrays.
+     * 
+     * @param b The batch, which must have been projected.
+     * @param i The index of the triangle.
+     * @param reverse True to swap the last two vertices, making it
+     *            counterclockwise.
+     */
+    private void drawTriangle(TriangleBatch b, int i, boolean reverse) {
+
+        long t0 = 0;
+        if (statistics != null) {
+            t0 = System.nanoTime();
+            statistics.trianglesRasterized++;
+            statistics.addArea(b.screenArea(i));
+        }
+
+        if (binner != null)
+            binner.add(b, i, reverse);
+        else
+            rasterizer.rasterize(b, i, reverse, fp, framebuffer);
+
+        if (statistics != null)
+            statistics.rasterNanos += System.nanoTime() - t0;
+    }
+
+    /**
+     * Returns the area of a clipped triangle on screen, in pixels.
+     */
+    private static float screenArea(Vertex[] vertices) {
 
-        //Rasterize triangle, sending results to fp
-        rasterizer.rasterize(triangle1, fp, framebuffer);
+        Vector4f p0 = vertices[0].v, p1 = vertices[1].v, p2 = vertices[2].v;
+        float x0 = p0.x / p0.w, y0 = p0.y / p0.w;
+        float dx1 = p1.x / p1.w - x0, dy1 = p1.y / p1.w - y0;
+        float dx2 = p2.x / p2.w - x0, dy2 = p2.y / p2.w - y0;
+        return 0.5f * Math.abs(dx1 * dy2 - dx2 * dy1);
     }
 
 }
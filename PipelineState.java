@@ -0,0 +1,81 @@
+package pipeline;
+
+import java.lang.reflect.Constructor;
+
+import pipeline.fragment.FragmentProcessor;
+import pipeline.vertex.VertexProcessor;
+
+/**
+ * A configuration of the pipeline: a fragment processor and a vertex
+ * processor, created for one framebuffer size. Pipeline.getState creates
+ * each combination once, through reflection, and caches it; switching to a
+ * state with Pipeline.setState then only swaps references. The rasterizer
+ * and clipper a state draws with are not part of it but shared by all states
+ * with the same number of attributes.
+ */
+public class PipelineState {
+
+    private static final Class<?>[] EMPTY_CLASS_ARRAY = new Class<?>[0];
+
+    private static final Object[] EMPTY_OBJECT_ARRAY = new Object[0];
+
+    /** The classes of the fragment and vertex processors. */
+    public final Class<?> fpClass, vpClass;
+
+    /** The size of the framebuffer the state was created for. */
+    public final int nx, ny;
+
+    /** The fragment processor. */
+    final FragmentProcessor fp;
+
+    /** The vertex processor. */
+    final VertexProcessor vp;
+
+    /**
+     * Creates the processors of a state.
+     *
+     * @param newFpClass The class of the fragment processor.
+     * @param newVpClass The class of the vertex processor.
+     * @param newNx The width of the framebuffer.
+     * @param newNy The height of the framebuffer.
+     */
+    PipelineState(Class<?> newFpClass, Class<?> newVpClass, int newNx, int newNy) {
+
+        fpClass = newFpClass;
+        vpClass = newVpClass;
+        nx = newNx;
+        ny = newNy;
+        try {
+            Constructor<?> c = fpClass.getConstructor(EMPTY_CLASS_ARRAY);
+            fp = (FragmentProcessor) c.newInstance(EMPTY_OBJECT_ARRAY);
+            c = vpClass.getConstructor(EMPTY_CLASS_ARRAY);
+            vp = (VertexProcessor) c.newInstance(EMPTY_OBJECT_ARRAY);
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the number of attributes the fragment processor expects, which
+     * selects the rasterizer and clipper the state draws with.
+     *
+     * @return The number of attributes.
+     */
+    public int nAttr() {
+
+        return fp.nAttr();
+    }
+
+    /**
+     * Returns true if the vertex and fragment processors expect the same
+     * number of attributes.
+     *
+     * @return True if the state can draw.
+     */
+    public boolean isValid() {
+
+        return fp.nAttr() == vp.nAttr();
+    }
+
+}
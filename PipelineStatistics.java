@@ -0,0 +1,141 @@
+package pipeline;
+
+/**
+ * The counters and timings collected by the pipeline while statistics are
+ * enabled, in the spirit of the pipeline statistics queries of OpenGL. An
+ * object of this class is returned by Pipeline.getStatistics and covers the
+ * work done since the previous call, typically one frame.
+ */
+public class PipelineStatistics {
+
+    /** The number of bins in the triangle area histogram. */
+    public static final int AREA_BINS = 16;
+
+    /** Vertices run through the vertex processor. */
+    public long verticesProcessed;
+
+    /** Triangles assembled and submitted to the clip stage. */
+    public long trianglesSubmitted;
+
+    /** Triangles culled by their winding. */
+    public long trianglesCulled;
+
+    /** Triangles rejected by the clipper, or clipped away entirely. */
+    public long trianglesRejected;
+
+    /** Triangles cut by a clip plane and split into one or more pieces. */
+    public long trianglesClipped;
+
+    /** Triangles, including pieces of clipped ones, handed to the rasterizer. */
+    public long trianglesRasterized;
+
+    /** Triangles rejected by occlusion culling before setup. */
+    public long trianglesOccluded;
+
+    /** Coarse depth tiles skipped by occlusion culling. */
+    public long tilesOccluded;
+
+    /** Pixels in the bounding boxes walked by the rasterizer. */
+    public long pixelsInBox;
+
+    /** Pixels visited by the walk, after skipping empty blocks. */
+    public long pixelsVisited;
+
+    /** Pixels covered by a triangle, whether shaded or hidden. */
+    public long pixelsCovered;
+
+    /** Fragments handed to the fragment processor. */
+    public long fragmentsShaded;
+
+    /** Covered pixels passing and failing the rasterizer's depth test. */
+    public long depthPasses, depthFails;
+
+    /**
+     * Nanoseconds spent in the vertex processor, in culling and clipping, and
+     * in setting up, rasterizing and shading triangles. In tile-binned mode
+     * the last one is the wall time of the flushes plus the binning.
+     */
+    public long vertexNanos, clipNanos, rasterNanos;
+
+    /**
+     * The screen areas of the rasterized triangles. Bin 0 counts triangles
+     * smaller than a pixel, bin i those of 2^(i-1) to 2^i pixels, and the last
+     * bin all larger ones.
+     */
+    public final long[] areaHistogram = new long[AREA_BINS];
+
+    /**
+     * Adds a triangle to the area histogram.
+     *
+     * @param area The screen area of the triangle, in pixels.
+     */
+    public void addArea(float area) {
+
+        int bin = area < 1 ? 0 : Math.min(AREA_BINS - 1, Math.getExponent(area) + 1);
+        areaHistogram[bin]++;
+    }
+
+    /**
+     * Copies all counters and timings of another statistics object.
+     *
+     * @param s The statistics to copy.
+     */
+    public void set(PipelineStatistics s) {
+
+        verticesProcessed = s.verticesProcessed;
+        trianglesSubmitted = s.trianglesSubmitted;
+        trianglesCulled = s.trianglesCulled;
+        trianglesRejected = s.trianglesRejected;
+        trianglesClipped = s.trianglesClipped;
+        trianglesRasterized = s.trianglesRasterized;
+        trianglesOccluded = s.trianglesOccluded;
+        tilesOccluded = s.tilesOccluded;
+        pixelsInBox = s.pixelsInBox;
+        pixelsVisited = s.pixelsVisited;
+        pixelsCovered = s.pixelsCovered;
+        fragmentsShaded = s.fragmentsShaded;
+        depthPasses = s.depthPasses;
+        depthFails = s.depthFails;
+        vertexNanos = s.vertexNanos;
+        clipNanos = s.clipNanos;
+        rasterNanos = s.rasterNanos;
+        System.arraycopy(s.areaHistogram, 0, areaHistogram, 0, AREA_BINS);
+    }
+
+    /**
+     * Sets all counters and timings to 0.
+     */
+    public void reset() {
+
+        set(new PipelineStatistics());
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("vertices ").append(verticesProcessed);
+        sb.append(", triangles ").append(trianglesSubmitted);
+        sb.append(" (culled ").append(trianglesCulled);
+        sb.append(", rejected ").append(trianglesRejected);
+        sb.append(", clipped ").append(trianglesClipped);
+        sb.append(", occluded ").append(trianglesOccluded);
+        sb.append(", rasterized ").append(trianglesRasterized);
+        sb.append("), pixels ").append(pixelsInBox);
+        sb.append(" in box, ").append(pixelsVisited);
+        sb.append(" visited, ").append(pixelsCovered);
+        sb.append(" covered, ").append(fragmentsShaded);
+        sb.append(" shaded, depth ").append(depthPasses);
+        sb.append("/").append(depthFails);
+        sb.append(" pass/fail, ms ").append(vertexNanos / 1000000.0);
+        sb.append("/").append(clipNanos / 1000000.0);
+        sb.append("/").append(rasterNanos / 1000000.0);
+        sb.append(" vertex/clip/raster, areas");
+        for (int i = 0; i < AREA_BINS; i++)
+            sb.append(' ').append(areaHistogram[i]);
+        return sb.toString();
+    }
+
+}
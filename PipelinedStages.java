@@ -0,0 +1,121 @@
+package pipeline;
+
+import pipeline.misc.Vertex;
+
+/**
+ * The pipelined back end of the pipeline. Only clipping and drawing move to
+ * threads of their own: the thread calling the pipeline still runs the
+ * vertex processor and assembles the triangles, but instead of going on to
+ * clip and draw each one it puts it into a ring and returns. A clip thread
+ * takes the triangles from there, culls and clips them and puts the results
+ * into a second ring, from which a raster thread sets up, rasterizes and
+ * shades them. Triangle setup stays with rasterization because the
+ * rasterizer keeps the setup of the triangle it draws in its own fields.
+ * The calling thread and the two stage threads thus work on different
+ * triangles at once. Every ring is first in, first out, so the framebuffer
+ * sees the triangles in submission order and the image is identical to the
+ * serial one.
+ */
+class PipelinedStages {
+
+    /** The number of triangles each ring holds. */
+    public static final int RING_SIZE = 1024;
+
+    /** The triangles waiting to be clipped, and those waiting to be drawn. */
+    protected final TriangleRing assembled, clipped;
+
+    /** The threads of the two stages. */
+    protected final TriangleRing.Stage clipStage, rasterStage;
+
+    /**
+     * Creates the rings and starts the stage threads.
+     *
+     * @param pipe The pipeline whose clipping and drawing the stages run.
+     * @param na The number of attributes of each vertex.
+     */
+    PipelinedStages(final Pipeline pipe, final int na) {
+
+        clipStage = new TriangleRing.Stage("clip") {
+
+            protected void work() {
+
+                Vertex[] triangle = newTriangle(na);
+                while (assembled.take(triangle)) {
+                    pipe.clipTriangle(triangle);
+                    assembled.release();
+                }
+            }
+        };
+        rasterStage = new TriangleRing.Stage("raster") {
+
+            protected void work() {
+
+                Vertex[] triangle = newTriangle(na);
+                while (clipped.take(triangle)) {
+                    pipe.drawTriangle(triangle);
+                    clipped.release();
+                }
+            }
+        };
+        assembled = new TriangleRing(na, RING_SIZE, clipStage);
+        clipped = new TriangleRing(na, RING_SIZE, rasterStage);
+        clipStage.start();
+        rasterStage.start();
+    }
+
+    /**
+     * Creates the vertices a stage copies its triangles into.
+     */
+    private static Vertex[] newTriangle(int na) {
+
+        Vertex[] triangle = { new Vertex(), new Vertex(), new Vertex() };
+        for (int iv = 0; iv < 3; iv++)
+            triangle[iv].setAttrs(na);
+        return triangle;
+    }
+
+    /**
+     * Passes an assembled triangle on to the clip stage. Called by the thread
+     * using the pipeline.
+     *
+     * @param vs The 3 processed vertices of the triangle.
+     */
+    void submit(Vertex[] vs) {
+
+        assembled.put(vs);
+    }
+
+    /**
+     * Passes a clipped triangle on to the raster stage. Called by the clip
+     * stage.
+     *
+     * @param vs The 3 vertices of the triangle.
+     */
+    void clipped(Vertex[] vs) {
+
+        clipped.put(vs);
+    }
+
+    /**
+     * Waits until every submitted triangle has been drawn. Called by the
+     * thread using the pipeline, which produces for the first ring only. The
+     * clip stage releases a triangle only after passing on its pieces, so
+     * once the first ring is empty the clip stage puts nothing more into the
+     * second one and the calling thread may drain that one in its place.
+     */
+    void drain() {
+
+        assembled.drain();
+        clipped.drain();
+    }
+
+    /**
+     * Stops the stage threads. Pending triangles are not drawn.
+     */
+    void dispose() {
+
+        clipStage.shutdown();
+        rasterStage.shutdown();
+    }
+
+}
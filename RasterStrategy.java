@@ -0,0 +1,35 @@
+package pipeline;
+
+import pipeline.fragment.FragmentProcessor;
+import pipeline.misc.FrameBuffer;
+
+/**
+ * The order in which the rasterizer visits the pixels of a triangle. After
+ * setup, the rasterizer hands the strategy the clipped bounding box of the
+ * triangle, and the strategy passes the rows, spans or quads it finds back
+ * to the rasterizer's span and quad routines, which do the coverage tests,
+ * evaluate the attributes and call the fragment processor. Every strategy
+ * must produce the same fragments with the same values; they only differ in
+ * how many pixels they look at on the way.
+ * 
+ * Strategies keep no state of their own, so one instance can be shared by
+ * rasterizers running on different threads. Subclasses need a public
+ * constructor without arguments, so that Pipeline.configure can create them.
+ */
+public abstract class RasterStrategy {
+
+    /**
+     * Visits the pixels of the last triangle set up by the rasterizer within
+     * the given rectangle, which already lies within its bounding box.
+     * 
+     * @param r The rasterizer holding the set up triangle.
+     * @param fp The fragment processor to send the fragments to.
+     * @param fb The framebuffer the fragment processor writes into.
+     * @param xLo The first column of the rectangle.
+     * @param yLo The first row of the rectangle.
+     * @param xHi The last column of the rectangle.
+     * @param yHi The last row of the rectangle.
+     */
+    public abstract void walk(Rasterizer r, FragmentProcessor fp, FrameBuffer fb, int xLo, int yLo, int xHi, int yHi);
+
+}
@@ -1,5 +1,8 @@
 package pipeline;
 
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
 import javax.vecmath.Vector4f;
 
 import pipeline.fragment.FragmentProcessor;
@@ -16,6 +19,59 @@ import pipeline.misc.Vertex;
  */
 public class Rasterizer {
 
+    /** Size of the screen tiles used by the tile-binned mode. */
+    public static final int TILE_SIZE = 32;
+
+    /**
+     * Size of the blocks tested by the hierarchical walk. The per-row
+     * attribute stepping restarts at every multiple of this width, so a pixel
+     * gets exactly the same values whether its triangle is walked in one
+     * piece, tile by tile or block by block. Must divide TILE_SIZE, and match
+     * the tiles of the framebuffer's coarse depth buffer.
+     */
+    public static final int BLOCK_SIZE = FrameBuffer.HIZ_TILE_SIZE;
+
+    /**
+     * Margin, in barycentric units, by which a block must clear an edge before
+     * the float edges classify it without per-pixel tests.
+     */
+    protected static final float BLOCK_EPSILON = 1e-4f;
+
+    /**
+     * Margin by which the interpolated depth must clear the coarse depth
+     * buffer before a triangle or block is rejected as hidden, covering the
+     * rounding of the stepped depth values.
+     */
+    protected static final float DEPTH_EPSILON = 1e-6f;
+
+    /**
+     * Triangles extending less than this many pixels in x and in y, whose
+     * bounding boxes hold at most SMALL_SIZE x SMALL_SIZE pixel centers, take
+     * the small triangle path.
+     */
+    public static final int SMALL_SIZE = 4;
+
+    /**
+     * Positions of the samples of a multisampled pixel relative to its
+     * center, in 1/16 of a pixel: the rotated grid pattern, which resolves
+     * near-horizontal and near-vertical edges in 4 steps.
+     */
+    protected static final int[] SAMPLE_X = { -2, 6, -6, 2 };
+    protected static final int[] SAMPLE_Y = { -6, -2, 2, 6 };
+
+    /** The largest offset of a sample from its pixel center along an axis. */
+    protected static final int SAMPLE_REACH = 6;
+
+    /** Number of fractional bits of the fixed point vertex positions (28.4). */
+    public static final int SUBPIXEL_BITS = 4;
+
+    /**
+     * Largest screen coordinate, in pixels, for which the fixed point edge
+     * functions cannot overflow. Triangles reaching further out fall back to
+     * the floating point edges.
+     */
+    protected static final float FIXED_RANGE = 1 << 22;
+
     /** Number of user-supplied attributes */
     protected int na;
 
@@ -38,12 +94,132 @@ public class Rasterizer {
     protected float[] rowData;
     protected float[] pixData;
 
-    /** A pre-allocated fragment */
-    Fragment frag;
+    /**
+     * The values handed to the fragment processor for a run of covered
+     * pixels: [z', a0/w, a1/w, ..., 1/w] at the first pixel of the run, and
+     * their increments from one pixel to the next.
+     */
+    protected float[] spanBase;
+    protected float[] spanDx;
+
+    /**
+     * The four fragments of a 2 x 2 quad and the differences of their
+     * attributes [z, a0, a1, ...] along x and y, for fragment processors
+     * that use derivatives.
+     */
+    protected Fragment[] quad;
+    protected float[] ddx;
+    protected float[] ddy;
+
+    /** The fragment processor the attribute layout below was set up for */
+    protected FragmentProcessor attrFp;
+
+    /** The attribute layouts of the fragment processors seen so far */
+    protected final IdentityHashMap<FragmentProcessor, AttributeLayout> layouts = new IdentityHashMap<FragmentProcessor, AttributeLayout>();
+
+    /**
+     * The qualifier of each attribute, as in FragmentProcessor, or -1 if the
+     * fragment processor does not read it.
+     */
+    protected int[] qualifiers;
+
+    /**
+     * The entries of the state arrays from 3 on that get plane equations:
+     * z if needed, the attributes read and not flat, and 1/w if any of them
+     * is perspective-corrected.
+     */
+    protected int[] planes;
+
+    /**
+     * The entries from 3 on that are handed to the fragment processor: the
+     * planes and the flat attributes, whose increments are always 0.
+     */
+    protected int[] values;
+
+    /** True if z is among the planes. */
+    protected boolean needZ;
+
+    /** True if 1/w is among the planes. */
+    protected boolean needW;
 
     /** Scratch space for post-perspective vertex positions */
     Vector4f[] posn = { new Vector4f(), new Vector4f(), new Vector4f() };
 
+    /** The screen-clamped bounding box of the triangle from the last setup */
+    protected int ixMin, ixMax, iyMin, iyMax;
+
+    /**
+     * The column of the current span's first pixel, minus the column its
+     * start values in pixData were evaluated at.
+     */
+    protected int spanOffset;
+
+    /** The order in which the pixels of a set up triangle are visited. */
+    protected RasterStrategy strategy = new BoundingBoxStrategy();
+
+    /** If true, coverage is decided by fixed point edge functions. */
+    protected boolean fixedPoint;
+
+    /** True if the last setup produced fixed point edge functions. */
+    protected boolean snapped;
+
+    /**
+     * Fixed point edge functions of the last setup. Edge k is opposite vertex
+     * k and its value at pixel (ix, iy) is eA[k] * ix + eB[k] * iy + eC[k],
+     * already biased by the fill rule so that a pixel is covered exactly when
+     * all three values are non-negative.
+     */
+    protected long[] eA = new long[3], eB = new long[3], eC = new long[3];
+
+    /** Scratch space for the snapped vertex positions */
+    protected long[] fx = new long[3], fy = new long[3];
+
+    /**
+     * If true, triangles whose extent is below SMALL_SIZE pixels in both
+     * directions skip the strategy and are walked row by row.
+     */
+    protected boolean smallTriangles = true;
+
+    /** If true, the bounding box is walked in blocks of BLOCK_SIZE pixels. */
+    protected boolean hierarchical;
+
+    /**
+     * If true, triangles and blocks found behind the coarse depth buffer of
+     * the framebuffer are skipped, for fragment processors that use the
+     * early depth test.
+     */
+    protected boolean occlusionCulling;
+
+    /**
+     * The number of samples per pixel: 1, or 4 for multisampling, where
+     * coverage and depth are evaluated at the sample positions and staged in
+     * the framebuffer for the fragment processor's write.
+     */
+    protected int samples = 1;
+
+    /** Scratch space for the sample depths of a pixel */
+    protected float[] sampleDepth = new float[4];
+
+    /** True if the current walk does the fragment processor's depth test. */
+    protected boolean earlyDepth;
+
+    /**
+     * Pixels in the walked bounding boxes, visited by the walk, covered and
+     * handed to the fragment processor, and covered but failing the early
+     * depth test.
+     */
+    protected long pixelsInBox, pixelsVisited, pixelsCovered, depthFails;
+
+    /** Covered pixels handed to the fragment processor after passing the early depth test. */
+    protected long depthPasses;
+
+    /**
+     * Triangles rejected as hidden before setup, and coarse depth tiles
+     * skipped as hidden, either under a rejected triangle or by the
+     * hierarchical walk.
+     */
+    protected long trianglesOccluded, tilesOccluded;
+
 
     /**
      * The only constructor.
@@ -64,36 +240,458 @@ public class Rasterizer {
         rowData = new float[5 + na];
         pixData = new float[5 + na];
 
-        frag = new Fragment(1 + na);
+        spanBase = new float[2 + na];
+        spanDx = new float[2 + na];
+
+        quad = new Fragment[4];
+        for (int i = 0; i < 4; i++)
+            quad[i] = new Fragment(1 + na);
+        ddx = new float[1 + na];
+        ddy = new float[1 + na];
+    }
+
+    /**
+     * Creates a rasterizer. A vectorized one tests the pixels of each span in
+     * the lanes of a SIMD vector; if the Vector API is not available, a
+     * scalar rasterizer is returned instead. Both produce the same fragments.
+     * 
+     * @param na The number of user defined attributes.
+     * @param nx The width of the image.
+     * @param ny The height of the image.
+     * @param vectorized True to ask for the vectorized rasterizer.
+     * @return The new rasterizer.
+     */
+    public static Rasterizer create(int na, int nx, int ny, boolean vectorized) {
+
+        if (vectorized) {
+            try {
+                Class<?> c = Class.forName("pipeline.VectorRasterizer");
+                if ((Boolean) c.getMethod("isSupported").invoke(null))
+                    return (Rasterizer) c.getConstructor(int.class, int.class, int.class).newInstance(na, nx, ny);
+            }
+            catch (Exception e) {
+                // Fall back to the scalar rasterizer
+            }
+            catch (LinkageError e) {
+                // The jdk.incubator.vector module is not present
+            }
+        }
+        return new Rasterizer(na, nx, ny);
+    }
+
+    /**
+     * @return True if this rasterizer tests pixels with SIMD vectors.
+     */
+    public boolean isVectorized() {
+
+        return false;
+    }
+
+    /**
+     * Selects the edge function core. With fixed point edges the vertices are
+     * snapped to 28.4 fixed point, the edge functions are stepped with integer
+     * adds, and pixels exactly on an edge belong to the triangle only if that
+     * edge is a top or left edge. Shared edges are then drawn exactly once.
+     * 
+     * @param b True for fixed point edges, false for floating point edges.
+     */
+    public void setFixedPoint(boolean b) {
+
+        fixedPoint = b;
+    }
+
+    /**
+     * @return True if coverage is decided by fixed point edge functions.
+     */
+    public boolean isFixedPoint() {
+
+        return fixedPoint;
+    }
+
+    /**
+     * Selects the hierarchical walk, which classifies blocks of BLOCK_SIZE x
+     * BLOCK_SIZE pixels before looking at single pixels.
+     * 
+     * @param b True for the hierarchical walk, false for the plain one.
+     */
+    public void setHierarchical(boolean b) {
+
+        hierarchical = b;
+    }
+
+    /**
+     * Selects occlusion culling against the coarse depth buffer. A triangle
+     * whose nearest vertex lies behind everything stored under its bounding
+     * box is rejected before setup, and the hierarchical walk skips blocks
+     * lying behind their tile. Only used with fragment processors that ask
+     * for the early depth test.
+     * 
+     * @param b True to cull hidden triangles and blocks.
+     */
+    public void setOcclusionCulling(boolean b) {
+
+        occlusionCulling = b;
+    }
+
+    /**
+     * Selects the small triangle path. Triangles smaller than SMALL_SIZE
+     * pixels in both directions then skip the strategy, and their few rows
+     * are walked directly.
+     * 
+     * @param b True to use the small triangle path where it applies.
+     */
+    public void setSmallTriangles(boolean b) {
+
+        smallTriangles = b;
     }
 
+    /**
+     * Selects the number of samples per pixel. It must match the framebuffer
+     * drawn into.
+     * 
+     * @param n 1 for one sample at the pixel center, or 4 for multisampling.
+     */
+    public void setSamples(int n) {
+
+        samples = n;
+    }
 
+    /**
+     * @return The number of samples per pixel.
+     */
+    public int getSamples() {
+
+        return samples;
+    }
+
+    /**
+     * Selects the strategy that finds the pixels of each triangle. All
+     * strategies produce the same fragments.
+     * 
+     * @param s The new strategy.
+     */
+    public void setStrategy(RasterStrategy s) {
+
+        strategy = s;
+    }
+
+    /**
+     * @return The strategy that finds the pixels of each triangle.
+     */
+    public RasterStrategy getStrategy() {
+
+        return strategy;
+    }
+
+    /**
+     * Copies the rasterization options of another rasterizer.
+     * 
+     * @param r The rasterizer to copy the options from.
+     */
+    public void copyOptions(Rasterizer r) {
+
+        fixedPoint = r.fixedPoint;
+        hierarchical = r.hierarchical;
+        occlusionCulling = r.occlusionCulling;
+        smallTriangles = r.smallTriangles;
+        samples = r.samples;
+        strategy = r.strategy;
+    }
+
+
+    /**
+     * Rasterizes a triangle over the whole screen, sending the fragments to the
+     * given fragment processor.
+     * 
+     * @param vs The 3 vertices of the triangle.
+     * @param fp The fragment processor to send the fragments to.
+     * @param fb The framebuffer the fragment processor writes into.
+     */
     protected void rasterize(Vertex[] vs, FragmentProcessor fp, FrameBuffer fb) {
 
+        rasterize(vs, fp, fb, 0, 0, nx - 1, ny - 1);
+    }
+
+    /**
+     * Rasterizes a triangle, emitting only the fragments that fall within the
+     * rectangle [x0, x1] x [y0, y1]. Used by the tile-binned mode, where each
+     * worker owns a disjoint set of tiles.
+     * 
+     * @param vs The 3 vertices of the triangle.
+     * @param fp The fragment processor to send the fragments to.
+     * @param fb The framebuffer the fragment processor writes into.
+     * @param x0 The first column of the rectangle.
+     * @param y0 The first row of the rectangle.
+     * @param x1 The last column of the rectangle.
+     * @param y1 The last row of the rectangle.
+     */
+    protected void rasterize(Vertex[] vs, FragmentProcessor fp, FrameBuffer fb, int x0, int y0, int x1, int y1) {
+
+        if (fp != attrFp)
+            configureAttributes(fp);
+        project(vs);
+        rasterizeProjected(fp, fb, x0, y0, x1, y1);
+    }
+
+    /**
+     * Rasterizes a triangle of a batch over the whole screen. The setup reads
+     * the projected positions and the attributes straight from the arrays of
+     * the batch; the fragments are the same as those of the triangle copied
+     * out into vertices.
+     * 
+     * @param b The batch.
+     * @param i The index of the triangle in the batch, which must have been
+     *            projected.
+     * @param reverse True to swap the last two vertices, reversing the winding.
+     * @param fp The fragment processor to send the fragments to.
+     * @param fb The framebuffer the fragment processor writes into.
+     */
+    void rasterize(TriangleBatch b, int i, boolean reverse, FragmentProcessor fp, FrameBuffer fb) {
+
+        if (fp != attrFp)
+            configureAttributes(fp);
+        project(b, i, reverse);
+        rasterizeProjected(fp, fb, 0, 0, nx - 1, ny - 1);
+    }
+
+    /**
+     * Rasterizes the triangle assembled by the last projection, within the
+     * rectangle [x0, x1] x [y0, y1].
+     */
+    protected void rasterizeProjected(FragmentProcessor fp, FrameBuffer fb, int x0, int y0, int x1, int y1) {
+
+        if (earlyDepth && occlusionCulling && occluded(fb, x0, y0, x1, y1))
+            return;
+        if (smallTriangles && samples == 1 && !fp.usesDerivatives() && isSmall()) {
+            rasterizeSmall(fp, fb, x0, y0, x1, y1);
+            return;
+        }
+        if (setup())
+            walk(fp, fb, x0, y0, x1, y1);
+    }
+
+    /**
+     * Makes the attribute layout of a fragment processor current: which
+     * entries of the state arrays are set up and handed over. The layout is
+     * worked out the first time the fragment processor is seen and kept, as
+     * its read mask and qualifiers do not change.
+     * 
+     * @param fp The fragment processor.
+     */
+    protected void configureAttributes(FragmentProcessor fp) {
+
+        AttributeLayout l = layouts.get(fp);
+        if (l == null) {
+            l = new AttributeLayout(fp, na);
+            layouts.put(fp, l);
+        }
+        attrFp = fp;
+        earlyDepth = l.earlyDepth;
+        needZ = l.needZ;
+        needW = l.needW;
+        qualifiers = l.qualifiers;
+        planes = l.planes;
+        values = l.values;
+        for (int ia = 0; ia < na; ia++)
+            if (qualifiers[ia] == FragmentProcessor.FLAT)
+                xInc[4 + ia] = yInc[4 + ia] = spanDx[1 + ia] = 0;
+    }
+
+    /**
+     * The attribute layout of a fragment processor, as read from its attribute
+     * read mask and qualifiers.
+     */
+    protected static class AttributeLayout {
+
+        final boolean earlyDepth, needZ, needW;
+
+        final int[] qualifiers, planes, values;
+
+        AttributeLayout(FragmentProcessor fp, int na) {
+
+            earlyDepth = fp.earlyDepthTest();
+            int mask = fp.attrReadMask();
+            needZ = earlyDepth || (mask & 1) != 0;
+            boolean w = false;
+            qualifiers = new int[na];
+            for (int ia = 0; ia < na; ia++) {
+                qualifiers[ia] = (mask & (2 << ia)) != 0 ? fp.attrQualifier(ia) : -1;
+                w |= qualifiers[ia] == FragmentProcessor.PERSPECTIVE;
+            }
+            needW = w;
+
+            int nPlanes = 0, nValues = 0;
+            int[] p = new int[2 + na], v = new int[2 + na];
+            if (needZ)
+                p[nPlanes++] = v[nValues++] = 3;
+            for (int ia = 0; ia < na; ia++) {
+                if (qualifiers[ia] == FragmentProcessor.FLAT)
+                    v[nValues++] = 4 + ia;
+                else if (qualifiers[ia] >= 0)
+                    p[nPlanes++] = v[nValues++] = 4 + ia;
+            }
+            if (needW)
+                p[nPlanes++] = v[nValues++] = 4 + na;
+            planes = Arrays.copyOf(p, nPlanes);
+            values = Arrays.copyOf(v, nValues);
+        }
+    }
+
+    /**
+     * Computes the screen space vertex positions and assembles the vertex
+     * data of the triangle.
+     * 
+     * @param vs The 3 vertices of the triangle.
+     */
+    protected void project(Vertex[] vs) {
+
         // Assemble the vertex data.  Entries 0--2 are barycentric
         // coordinates; entry 3 is the screen-space depth; entries
         // 4 through 4 + (na-1) are the attributes provided in the
         // vertices; and entry 4 + na is the inverse w coordinate.
-        // The caller-provided attributes are all interpolated with
-        // perspective correction.
+        // The caller-provided attributes are divided by w if they are
+        // interpolated with perspective correction, and taken from the
+        // first vertex if they are flat.
         for (int iv = 0; iv < 3; iv++) {
             float invW = 1.0f / vs[iv].v.w;
             posn[iv].scale(invW, vs[iv].v);
             for (int k = 0; k < 3; k++)
                 vData[iv][k] = (k == iv ? 1 : 0);
             vData[iv][3] = posn[iv].z;
-            for (int ia = 0; ia < na; ia++)
-                vData[iv][4 + ia] = invW * vs[iv].attrs[ia];
+            for (int ia = 0; ia < na; ia++) {
+                switch (qualifiers[ia]) {
+                case FragmentProcessor.PERSPECTIVE:
+                    vData[iv][4 + ia] = invW * vs[iv].attrs[ia];
+                    break;
+                case FragmentProcessor.SCREEN_LINEAR:
+                    vData[iv][4 + ia] = vs[iv].attrs[ia];
+                    break;
+                case FragmentProcessor.FLAT:
+                    vData[iv][4 + ia] = vs[0].attrs[ia];
+                    break;
+                }
+            }
             vData[iv][4 + na] = invW;
         }
+    }
 
-        // Compute the bounding box of the triangle; bail out if it is empty.
-        int ixMin = Math.max(0, ceil(min(posn[0].x, posn[1].x, posn[2].x)));
-        int ixMax = Math.min(nx - 1, floor(max(posn[0].x, posn[1].x, posn[2].x)));
-        int iyMin = Math.max(0, ceil(min(posn[0].y, posn[1].y, posn[2].y)));
-        int iyMax = Math.min(ny - 1, floor(max(posn[0].y, posn[1].y, posn[2].y)));
-        if (ixMin > ixMax || iyMin > iyMax)
+    /**
+     * Like project(Vertex[]), for a triangle of a batch whose positions have
+     * already been divided by w.
+     * 
+     * @param b The batch.
+     * @param i The index of the triangle.
+     * @param reverse True to swap the last two vertices.
+     */
+    protected void project(TriangleBatch b, int i, boolean reverse) {
+
+        for (int iv = 0; iv < 3; iv++) {
+            int j = i + TriangleBatch.SIZE * (reverse && iv != 0 ? 3 - iv : iv);
+            float invW = b.invW[j];
+            posn[iv].set(b.sx[j], b.sy[j], b.sz[j], 1);
+            for (int k = 0; k < 3; k++)
+                vData[iv][k] = (k == iv ? 1 : 0);
+            vData[iv][3] = b.sz[j];
+            for (int ia = 0; ia < na; ia++) {
+                switch (qualifiers[ia]) {
+                case FragmentProcessor.PERSPECTIVE:
+                    vData[iv][4 + ia] = invW * b.attrs[ia][j];
+                    break;
+                case FragmentProcessor.SCREEN_LINEAR:
+                    vData[iv][4 + ia] = b.attrs[ia][j];
+                    break;
+                case FragmentProcessor.FLAT:
+                    vData[iv][4 + ia] = b.attrs[ia][i];
+                    break;
+                }
+            }
+            vData[iv][4 + na] = invW;
+        }
+    }
+
+    /**
+     * Tests the projected triangle against the coarse depth buffer. Every
+     * interpolated z lies between the vertex depths, so the triangle is hidden
+     * if its nearest vertex is behind the largest z stored in the tiles its
+     * bounding box overlaps within [x0, x1] x [y0, y1].
+     * 
+     * @return True if no pixel of the triangle can pass the depth test.
+     */
+    protected boolean occluded(FrameBuffer fb, int x0, int y0, int x1, int y1) {
+
+        // A slightly larger box than either setup computes
+        int xLo = Math.max(x0, floor(min(posn[0].x, posn[1].x, posn[2].x)));
+        int xHi = Math.min(x1, ceil(max(posn[0].x, posn[1].x, posn[2].x)));
+        int yLo = Math.max(y0, floor(min(posn[0].y, posn[1].y, posn[2].y)));
+        int yHi = Math.min(y1, ceil(max(posn[0].y, posn[1].y, posn[2].y)));
+        if (xLo > xHi || yLo > yHi)
+            return false;
+
+        float zNear = min(posn[0].z, posn[1].z, posn[2].z);
+        if (!(zNear - DEPTH_EPSILON >= fb.getMaxZ(xLo, yLo, xHi, yHi)))
+            return false;
+        trianglesOccluded++;
+        tilesOccluded += (long) (xHi / FrameBuffer.HIZ_TILE_SIZE - xLo / FrameBuffer.HIZ_TILE_SIZE + 1)
+                * (yHi / FrameBuffer.HIZ_TILE_SIZE - yLo / FrameBuffer.HIZ_TILE_SIZE + 1);
+        return true;
+    }
+
+    /**
+     * @return True if the projected triangle extends less than SMALL_SIZE
+     *         pixels in x and in y.
+     */
+    protected boolean isSmall() {
+
+        return max(posn[0].x, posn[1].x, posn[2].x) - min(posn[0].x, posn[1].x, posn[2].x) < SMALL_SIZE
+                && max(posn[0].y, posn[1].y, posn[2].y) - min(posn[0].y, posn[1].y, posn[2].y) < SMALL_SIZE;
+    }
+
+    /**
+     * The small triangle path. A triangle this small touches at most two
+     * blocks per row, so its rows are walked directly, split at the block
+     * boundaries, without going through the strategy, the block
+     * classification or the span setup of the scanline walk. The setup, the
+     * coverage test and the values handed to the fragment processor are those
+     * of the general path, so every pixel comes out the same either way.
+     */
+    protected void rasterizeSmall(FragmentProcessor fp, FrameBuffer fb, int x0, int y0, int x1, int y1) {
+
+        if (!setup())
             return;
+        int xLo = Math.max(ixMin, x0), xHi = Math.min(ixMax, x1);
+        int yLo = Math.max(iyMin, y0), yHi = Math.min(iyMax, y1);
+        if (xLo > xHi || yLo > yHi)
+            return;
+        pixelsInBox += (xHi - xLo + 1) * (yHi - yLo + 1);
+
+        for (int y = yLo; y <= yHi; y++) {
+            int xEnd;
+            for (int xStart = xLo; xStart <= xHi; xStart = xEnd + 1) {
+                xEnd = Math.min(xHi, xStart | (BLOCK_SIZE - 1));
+                span(fp, fb, y, xStart, xEnd, true);
+            }
+        }
+    }
+
+    /**
+     * Triangle setup: computes the bounding box and the plane equations of all
+     * interpolated values of the projected triangle.
+     * 
+     * @return False if the triangle is back-facing or covers no pixel centers.
+     */
+    protected boolean setup() {
+
+        if (fixedPoint && snap())
+            return setupFixed();
+        snapped = false;
+
+        // Compute the bounding box of the triangle; bail out if it is empty.
+        ixMin = ceil(min(posn[0].x, posn[1].x, posn[2].x));
+        ixMax = floor(max(posn[0].x, posn[1].x, posn[2].x));
+        iyMin = ceil(min(posn[0].y, posn[1].y, posn[2].y));
+        iyMax = floor(max(posn[0].y, posn[1].y, posn[2].y));
+        if (!clampBox())
+            return false;
 
         // Compute the determinant for triangle setup.  If it is negative, the
         // triangle is back-facing and we cull it.
@@ -101,41 +699,570 @@ public class Rasterizer {
         float dx2 = posn[2].x - posn[0].x, dy2 = posn[2].y - posn[0].y;
         float det = dx1 * dy2 - dx2 * dy1;
         if (det < 0)
+            return false;
+
+        setupPlanes(0, dx1, dy1, dx2, dy2, det);
+        return true;
+    }
+
+    /**
+     * Clamps the bounding box of pixel centers to the screen, after widening
+     * it by a pixel when the samples of pixels just outside it may be
+     * covered.
+     * 
+     * @return False if the box is empty.
+     */
+    protected boolean clampBox() {
+
+        if (samples > 1) {
+            ixMin--;
+            ixMax++;
+            iyMin--;
+            iyMax++;
+        }
+        ixMin = Math.max(0, ixMin);
+        ixMax = Math.min(nx - 1, ixMax);
+        iyMin = Math.max(0, iyMin);
+        iyMax = Math.min(ny - 1, iyMax);
+        return ixMin <= ixMax && iyMin <= iyMax;
+    }
+
+    /**
+     * Triangle setup: computes the x and y increments of the barycentric
+     * coordinates from index k0 on, and of the other planes.
+     */
+    protected void setupPlanes(int k0, float dx1, float dy1, float dx2, float dy2, float det) {
+
+        for (int k = k0; k < 3; k++)
+            setupPlane(k, dx1, dy1, dx2, dy2, det);
+        for (int i = 0; i < planes.length; i++) {
+            int k = planes[i];
+            setupPlane(k, dx1, dy1, dx2, dy2, det);
+            spanDx[k - 3] = xInc[k];
+        }
+    }
+
+    private void setupPlane(int k, float dx1, float dy1, float dx2, float dy2, float det) {
+
+        float da1 = vData[1][k] - vData[0][k];
+        float da2 = vData[2][k] - vData[0][k];
+        xInc[k] = (da1 * dy2 - da2 * dy1) / det;
+        yInc[k] = (da2 * dx1 - da1 * dx2) / det;
+    }
+
+    /**
+     * Snaps the screen space vertex positions to 28.4 fixed point.
+     * 
+     * @return False if a vertex is too far out to be snapped safely.
+     */
+    protected boolean snap() {
+
+        for (int iv = 0; iv < 3; iv++) {
+            if (!(Math.abs(posn[iv].x) < FIXED_RANGE && Math.abs(posn[iv].y) < FIXED_RANGE))
+                return false;
+            fx[iv] = Math.round(posn[iv].x * (1 << SUBPIXEL_BITS));
+            fy[iv] = Math.round(posn[iv].y * (1 << SUBPIXEL_BITS));
+        }
+        return true;
+    }
+
+    /**
+     * Triangle setup for fixed point edges: bounding box, edge functions with
+     * the top-left fill rule, and the attribute planes. The barycentric
+     * entries of the planes are not needed in this case.
+     * 
+     * @return False if the triangle is back-facing, degenerate or covers no
+     *         pixel centers.
+     */
+    protected boolean setupFixed() {
+
+        if (!setupEdges())
+            return false;
+
+        float dx1 = posn[1].x - posn[0].x, dy1 = posn[1].y - posn[0].y;
+        float dx2 = posn[2].x - posn[0].x, dy2 = posn[2].y - posn[0].y;
+        setupPlanes(3, dx1, dy1, dx2, dy2, dx1 * dy2 - dx2 * dy1);
+        return true;
+    }
+
+    /**
+     * The part of the fixed point setup that does not depend on the
+     * attributes: bounding box and edge functions.
+     * 
+     * @return False if the triangle is back-facing, degenerate or covers no
+     *         pixel centers.
+     */
+    protected boolean setupEdges() {
+
+        snapped = true;
+
+        // Bounding box of the snapped triangle, in whole pixels
+        ixMin = (int) ((min(fx[0], fx[1], fx[2]) + (1 << SUBPIXEL_BITS) - 1) >> SUBPIXEL_BITS);
+        ixMax = (int) (max(fx[0], fx[1], fx[2]) >> SUBPIXEL_BITS);
+        iyMin = (int) ((min(fy[0], fy[1], fy[2]) + (1 << SUBPIXEL_BITS) - 1) >> SUBPIXEL_BITS);
+        iyMax = (int) (max(fy[0], fy[1], fy[2]) >> SUBPIXEL_BITS);
+        if (!clampBox())
+            return false;
+
+        // Twice the signed area in 24.8 fixed point; reject back faces and
+        // degenerate triangles.
+        long area = (fx[1] - fx[0]) * (fy[2] - fy[0]) - (fx[2] - fx[0]) * (fy[1] - fy[0]);
+        if (area <= 0)
+            return false;
+
+        // Edge k runs from vertex k+1 to vertex k+2 and is positive inside.
+        // In this y-up frame a counter-clockwise triangle has its left edges
+        // going down and its top edges going left; pixels on any other edge
+        // are excluded by biasing the edge function by -1.
+        for (int k = 0; k < 3; k++) {
+            int i = (k + 1) % 3, j = (k + 2) % 3;
+            long dx = fx[j] - fx[i], dy = fy[j] - fy[i];
+            boolean topLeft = dy < 0 || (dy == 0 && dx < 0);
+            eA[k] = -dy << SUBPIXEL_BITS;
+            eB[k] = dx << SUBPIXEL_BITS;
+            eC[k] = dy * fx[i] - dx * fy[i] - (topLeft ? 0 : 1);
+        }
+        return true;
+    }
+
+    /**
+     * Walks the part of the bounding box of the last set up triangle that lies
+     * within [x0, x1] x [y0, y1] with the current strategy. For each pixel
+     * where the barycentric coordinates are in range, emits a fragment. In our
+     * case this means calling the fragment processor to process it
+     * immediately.
+     * 
+     * The attribute values are evaluated directly at the start of every row
+     * segment, which runs from the left side of the clipped bounding box or
+     * from a block boundary to the next block boundary, so the values seen by
+     * a pixel do not depend on the rectangle or the strategy.
+     */
+    protected void walk(FragmentProcessor fp, FrameBuffer fb, int x0, int y0, int x1, int y1) {
+
+        int xLo = Math.max(ixMin, x0), xHi = Math.min(ixMax, x1);
+        int yLo = Math.max(iyMin, y0), yHi = Math.min(iyMax, y1);
+        if (xLo > xHi || yLo > yHi)
             return;
+        pixelsInBox += (long) (xHi - xLo + 1) * (yHi - yLo + 1);
 
-        // Triangle setup: compute the initial values and the x and y increments
-        // for each attribute.
-        for (int k = 0; k < 5 + na; k++) {
-            float da1 = vData[1][k] - vData[0][k];
-            float da2 = vData[2][k] - vData[0][k];
-            xInc[k] = (da1 * dy2 - da2 * dy1) / det;
-            yInc[k] = (da2 * dx1 - da1 * dx2) / det;
-            rowData[k] = vData[0][k] + (ixMin - posn[0].x) * xInc[k] + (iyMin - posn[0].y) * yInc[k];
-        }
-
-        // Rasterize: loop over the bounding box, updating the attribute values.
-        // For each pixel where the barycentric coordinates are in range, emit 
-        // a fragment.  In our case this means calling the fragment processor to
-        // process it immediately.
-        for (frag.y = iyMin; frag.y <= iyMax; frag.y++) {
-            for (int k = 0; k < 5 + na; k++)
-                pixData[k] = rowData[k];
-            for (frag.x = ixMin; frag.x <= ixMax; frag.x++) {
-                if (pixData[0] >= 0 && pixData[1] >= 0 && pixData[2] >= 0) {
-                    frag.attrs[0] = pixData[3];
-                    float w = 1.0f / pixData[4 + na];
-                    for (int ia = 0; ia < na; ia++)
-                        frag.attrs[1 + ia] = pixData[4 + ia] * w;
-                    fp.fragment(frag, fb);
+        strategy.walk(this, fp, fb, xLo, yLo, xHi, yHi);
+    }
+
+    /**
+     * The hierarchical walk. The rectangle is cut into BLOCK_SIZE x BLOCK_SIZE
+     * blocks aligned to the screen, and each block is tested against the three
+     * edge functions at its corners. Blocks entirely outside an edge are
+     * skipped, blocks entirely inside all edges are emitted without per-pixel
+     * coverage tests, and only the remaining blocks are tested per pixel.
+     * With occlusion culling, blocks lying behind their coarse depth tile are
+     * skipped as well.
+     */
+    protected void walkBlocks(FragmentProcessor fp, FrameBuffer fb, int xLo, int yLo, int xHi, int yHi) {
+
+        for (int by0 = yLo; by0 <= yHi; by0 = (by0 | (BLOCK_SIZE - 1)) + 1) {
+            int by1 = Math.min(yHi, by0 | (BLOCK_SIZE - 1));
+            for (int bx0 = xLo; bx0 <= xHi; bx0 = (bx0 | (BLOCK_SIZE - 1)) + 1) {
+                int bx1 = Math.min(xHi, bx0 | (BLOCK_SIZE - 1));
+                int c = classify(bx0, by0, bx1, by1);
+                if (c < 0 || (earlyDepth && occlusionCulling && blockOccluded(fb, bx0, by0, bx1, by1)))
+                    continue;
+                for (int y = by0; y <= by1; y++)
+                    span(fp, fb, y, bx0, bx1, c == 0);
+            }
+        }
+    }
+
+    /**
+     * Tests the block [bx0, bx1] x [by0, by1] against the edges of the last
+     * set up triangle. Since the edge functions are linear, their extremes
+     * over the block are found at the corners picked by the signs of their
+     * gradients.
+     * 
+     * @return -1 if no pixel of the block is covered, 1 if all of them are,
+     *         and 0 otherwise.
+     */
+    protected int classify(int bx0, int by0, int bx1, int by1) {
+
+        // The samples of the block lie within a pixel of its centers
+        if (samples > 1) {
+            bx0--;
+            by0--;
+            bx1++;
+            by1++;
+        }
+
+        boolean inside = true;
+        for (int k = 0; k < 3; k++) {
+            if (snapped) {
+                long eMax = eA[k] * (eA[k] > 0 ? bx1 : bx0) + eB[k] * (eB[k] > 0 ? by1 : by0) + eC[k];
+                if (eMax < 0)
+                    return -1;
+                long eMin = eA[k] * (eA[k] > 0 ? bx0 : bx1) + eB[k] * (eB[k] > 0 ? by0 : by1) + eC[k];
+                inside &= eMin >= 0;
+            }
+            else {
+                // The per-pixel test sees stepped values that can differ from
+                // these by rounding, so only decide blocks clear of the edge.
+                float bMax = vData[0][k] + ((xInc[k] > 0 ? bx1 : bx0) - posn[0].x) * xInc[k] + ((yInc[k] > 0 ? by1 : by0) - posn[0].y) * yInc[k];
+                if (bMax < -BLOCK_EPSILON)
+                    return -1;
+                float bMin = vData[0][k] + ((xInc[k] > 0 ? bx0 : bx1) - posn[0].x) * xInc[k] + ((yInc[k] > 0 ? by0 : by1) - posn[0].y) * yInc[k];
+                inside &= bMin >= BLOCK_EPSILON;
+            }
+        }
+        return inside ? 1 : 0;
+    }
+
+    /**
+     * The walk for fragment processors that use derivatives. Blocks are
+     * visited as in the hierarchical walk (or all tested per pixel, without
+     * it), and the pixels of each block are gathered into 2 x 2 quads aligned
+     * to even coordinates. Every quad with at least one covered pixel is
+     * handed to the fragment processor, its uncovered pixels serving as
+     * helpers for the derivatives. Blocks and tiles have even sizes, so a
+     * quad never straddles two of them.
+     */
+    protected void walkQuads(FragmentProcessor fp, FrameBuffer fb, int xLo, int yLo, int xHi, int yHi) {
+
+        for (int by0 = yLo; by0 <= yHi; by0 = (by0 | (BLOCK_SIZE - 1)) + 1) {
+            int by1 = Math.min(yHi, by0 | (BLOCK_SIZE - 1));
+            for (int bx0 = xLo; bx0 <= xHi; bx0 = (bx0 | (BLOCK_SIZE - 1)) + 1) {
+                int bx1 = Math.min(xHi, bx0 | (BLOCK_SIZE - 1));
+                boolean test = true;
+                if (hierarchical) {
+                    int c = classify(bx0, by0, bx1, by1);
+                    if (c < 0 || (earlyDepth && occlusionCulling && blockOccluded(fb, bx0, by0, bx1, by1)))
+                        continue;
+                    test = c == 0;
                 }
-                for (int k = 0; k < 5 + na; k++)
-                    pixData[k] += xInc[k];
+
+                for (int qy = by0 & ~1; qy <= by1; qy += 2)
+                    quadLine(fp, fb, qy, bx0, bx1, by0, by1, test);
             }
-            for (int k = 0; k < 5 + na; k++)
-                rowData[k] += yInc[k];
         }
     }
 
+    /**
+     * Shades the line of quads starting at row qy (even) over the row
+     * segment [bx0, bx1], using only those of rows qy and qy + 1 that lie
+     * within [yLo, yHi].
+     */
+    protected void quadLine(FragmentProcessor fp, FrameBuffer fb, int qy, int bx0, int bx1, int yLo, int yHi, boolean test) {
+
+        // Coverage of both rows, with bit 0 at the even column the quads
+        // start from
+        int qx0 = bx0 & ~1;
+        long m0 = qy >= yLo ? quadRow(fb, qy, bx0, bx1, test) << (bx0 - qx0) : 0;
+        long m1 = qy + 1 <= yHi ? quadRow(fb, qy + 1, bx0, bx1, test) << (bx0 - qx0) : 0;
+        for (int qx = qx0; qx <= bx1 && (m0 | m1) != 0; qx += 2) {
+            int mask = (int) (m0 & 3) | (int) (m1 & 3) << 2;
+            if (mask != 0)
+                shadeQuad(fp, fb, qx, qy, mask);
+            m0 >>>= 2;
+            m1 >>>= 2;
+        }
+    }
+
+    /**
+     * Tests the pixels bx0...bx1 of row y like a span.
+     * 
+     * @return A mask with bit i set if pixel bx0 + i is covered and not hidden.
+     */
+    protected long quadRow(FrameBuffer fb, int y, int bx0, int bx1, boolean test) {
+
+        pixelsVisited += bx1 - bx0 + 1;
+        rowStart(y, bx0, bx0, false);
+        return coverage(fb, y, bx0, bx1 - bx0 + 1, test);
+    }
+
+    /**
+     * Evaluates the attributes of the quad whose first pixel is (qx, qy),
+     * divides out w, takes their differences and hands the quad to the
+     * fragment processor.
+     */
+    protected void shadeQuad(FragmentProcessor fp, FrameBuffer fb, int qx, int qy, int mask) {
+
+        for (int i = 0; i < 4; i++) {
+            Fragment f = quad[i];
+            f.x = qx + (i & 1);
+            f.y = qy + (i >> 1);
+            float dy = f.y - posn[0].y, dx = f.x - posn[0].x;
+            float w = needW ? 1.0f / (vData[0][4 + na] + dy * yInc[4 + na] + dx * xInc[4 + na]) : 0;
+            if (needZ)
+                f.attrs[0] = vData[0][3] + dy * yInc[3] + dx * xInc[3];
+            for (int ia = 0; ia < na; ia++) {
+                if (qualifiers[ia] < 0)
+                    continue;
+                float a = vData[0][4 + ia] + dy * yInc[4 + ia] + dx * xInc[4 + ia];
+                f.attrs[1 + ia] = qualifiers[ia] == FragmentProcessor.PERSPECTIVE ? a * w : a;
+            }
+        }
+        for (int k = 0; k < 1 + na; k++) {
+            ddx[k] = quad[1].attrs[k] - quad[0].attrs[k];
+            ddy[k] = quad[2].attrs[k] - quad[0].attrs[k];
+        }
+        pixelsCovered += Integer.bitCount(mask);
+        if (earlyDepth)
+            depthPasses += Integer.bitCount(mask);
+        fp.fragmentQuad(quad, mask, ddx, ddy, fb);
+    }
+
+    /**
+     * Tests the block [bx0, bx1] x [by0, by1], which lies within one coarse
+     * depth tile, against that tile. The depth plane takes its smallest value
+     * over the block at the corner picked by the signs of its gradient.
+     * 
+     * @return True if no pixel of the block can pass the depth test.
+     */
+    protected boolean blockOccluded(FrameBuffer fb, int bx0, int by0, int bx1, int by1) {
+
+        int m = samples > 1 ? 1 : 0;
+        float zMin = vData[0][3] + ((xInc[3] > 0 ? bx0 - m : bx1 + m) - posn[0].x) * xInc[3] + ((yInc[3] > 0 ? by0 - m : by1 + m) - posn[0].y) * yInc[3];
+        if (!(zMin - DEPTH_EPSILON >= fb.getMaxZ(bx0, by0)))
+            return false;
+        tilesOccluded++;
+        return true;
+    }
+
+    /**
+     * Walks the pixels xStart...xEnd of row y, which must not cross a block
+     * boundary, and hands every run of covered pixels to the fragment
+     * processor in one call. If test is false the caller already knows that
+     * the whole span is covered. If the fragment processor asks for it,
+     * pixels failing the depth test are left out of the runs, so their
+     * attributes are never divided out.
+     */
+    protected void span(FragmentProcessor fp, FrameBuffer fb, int y, int xStart, int xEnd, boolean test) {
+
+        span(fp, fb, y, xStart, xStart, xEnd, test);
+    }
+
+    /**
+     * Like span(FragmentProcessor, FrameBuffer, int, int, int, boolean), for
+     * the part xStart...xEnd of the row segment starting at xOrigin. The
+     * pixels get the same values as if the whole segment were walked.
+     */
+    protected void span(FragmentProcessor fp, FrameBuffer fb, int y, int xOrigin, int xStart, int xEnd, boolean test) {
+
+        int n = xEnd - xStart + 1;
+        pixelsVisited += n;
+        rowStart(y, xOrigin, xStart, true);
+
+        if (!test && !earlyDepth && samples == 1) {
+            emit(fp, fb, y, begin(xStart, 0), n);
+            return;
+        }
+
+        long mask = coverage(fb, y, xStart, n, test);
+        while (mask != 0) {
+            int i = Long.numberOfTrailingZeros(mask);
+            int count = Long.numberOfTrailingZeros(~(mask >>> i));
+            emit(fp, fb, y, begin(xStart + i, i), count);
+            mask &= count == 64 ? 0 : -1L << (i + count);
+        }
+    }
+
+    /**
+     * Evaluates the barycentric coordinates and z at (xOrigin, y) into
+     * pixData, and if all is true the other values as well, for a span
+     * starting at xStart.
+     */
+    protected void rowStart(int y, int xOrigin, int xStart, boolean all) {
+
+        spanOffset = xStart - xOrigin;
+        float dy = y - posn[0].y, dx = xOrigin - posn[0].x;
+
+        // With fixed point edges the barycentric entries are not needed
+        for (int k = snapped ? 3 : 0; k < 3; k++)
+            pixData[k] = vData[0][k] + dy * yInc[k] + dx * xInc[k];
+        if (!all) {
+            if (needZ)
+                pixData[3] = vData[0][3] + dy * yInc[3] + dx * xInc[3];
+            return;
+        }
+        for (int i = 0; i < values.length; i++) {
+            int k = values[i];
+            pixData[k] = vData[0][k] + dy * yInc[k] + dx * xInc[k];
+        }
+    }
+
+    /**
+     * Tests the n pixels of a span, whose start values are in pixData,
+     * against the edges and, for the early depth test, against the z buffer.
+     * The values at pixel i of the span are evaluated as start + (spanOffset
+     * + i) * xInc, never stepped, so that every implementation of this test
+     * gets the same answer.
+     * 
+     * @return A mask with bit i set if pixel i is covered and not hidden.
+     */
+    protected long coverage(FrameBuffer fb, int y, int xStart, int n, boolean test) {
+
+        if (samples > 1)
+            return coverageSamples(fb, y, xStart, n, test);
+
+        long mask = 0;
+        if (!test)
+            mask = -1L >>> (64 - n);
+        else if (snapped) {
+            long e0 = eA[0] * xStart + eB[0] * y + eC[0];
+            long e1 = eA[1] * xStart + eB[1] * y + eC[1];
+            long e2 = eA[2] * xStart + eB[2] * y + eC[2];
+            for (int i = 0; i < n; i++)
+                if (((e0 + eA[0] * i) | (e1 + eA[1] * i) | (e2 + eA[2] * i)) >= 0)
+                    mask |= 1L << i;
+        }
+        else {
+            for (int i = 0, j = spanOffset; i < n; i++, j++)
+                if (pixData[0] + j * xInc[0] >= 0 && pixData[1] + j * xInc[1] >= 0 && pixData[2] + j * xInc[2] >= 0)
+                    mask |= 1L << i;
+        }
+
+        if (earlyDepth) {
+            for (int i = 0; i < n; i++) {
+                if ((mask & (1L << i)) != 0 && !(pixData[3] + (spanOffset + i) * xInc[3] < fb.getZ(xStart + i, y))) {
+                    mask &= ~(1L << i);
+                    depthFails++;
+                }
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * The multisampled version of coverage: evaluates the edges and the depth
+     * at the sample positions of each pixel, and stages the covered samples
+     * that pass the depth test in the framebuffer, where the fragment
+     * processor's write picks them up. Without the early depth test the
+     * covered samples are staged with their depths, which the framebuffer
+     * tests one by one when the fragment processor reads the depth.
+     * 
+     * @return A mask with bit i set if any sample of pixel i is covered and
+     *         not hidden.
+     */
+    protected long coverageSamples(FrameBuffer fb, int y, int xStart, int n, boolean test) {
+
+        long mask = 0;
+        for (int i = 0; i < n; i++) {
+            int x = xStart + i;
+            int m = 0;
+            boolean covered = false;
+            for (int s = 0; s < samples; s++) {
+                float sx = (float) SAMPLE_X[s] / (1 << SUBPIXEL_BITS), sy = (float) SAMPLE_Y[s] / (1 << SUBPIXEL_BITS);
+                boolean in = true;
+                if (test && snapped) {
+                    // eA and eB step whole pixels, 1 << SUBPIXEL_BITS subpixels
+                    long e0 = eA[0] * x + eB[0] * y + eC[0] + (eA[0] >> SUBPIXEL_BITS) * SAMPLE_X[s] + (eB[0] >> SUBPIXEL_BITS) * SAMPLE_Y[s];
+                    long e1 = eA[1] * x + eB[1] * y + eC[1] + (eA[1] >> SUBPIXEL_BITS) * SAMPLE_X[s] + (eB[1] >> SUBPIXEL_BITS) * SAMPLE_Y[s];
+                    long e2 = eA[2] * x + eB[2] * y + eC[2] + (eA[2] >> SUBPIXEL_BITS) * SAMPLE_X[s] + (eB[2] >> SUBPIXEL_BITS) * SAMPLE_Y[s];
+                    in = (e0 | e1 | e2) >= 0;
+                }
+                else if (test) {
+                    for (int k = 0; k < 3 && in; k++)
+                        in = pixData[k] + (spanOffset + i) * xInc[k] + sx * xInc[k] + sy * yInc[k] >= 0;
+                }
+                if (in && needZ) {
+                    sampleDepth[s] = pixData[3] + (spanOffset + i) * xInc[3] + sx * xInc[3] + sy * yInc[3];
+                    if (earlyDepth) {
+                        in = sampleDepth[s] < fb.getSampleZ(x, y, s);
+                        covered = true;
+                    }
+                }
+                if (in)
+                    m |= 1 << s;
+            }
+            if (m == 0 && covered)
+                depthFails++;
+
+            if (m != 0) {
+                if (earlyDepth)
+                    fb.stageSamples(x, y, m | FrameBuffer.STAGED_DEPTH, sampleDepth);
+                else
+                    fb.stageSamples(x, y, needZ ? m | FrameBuffer.STAGED_Z : m, needZ ? sampleDepth : null);
+                mask |= 1L << i;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Starts a run of covered pixels at column x, pixel i of the current
+     * span, by evaluating the interpolated values there as the base of the
+     * run.
+     * 
+     * @return x.
+     */
+    private int begin(int x, int i) {
+
+        for (int j = 0; j < values.length; j++) {
+            int k = values[j];
+            spanBase[k - 3] = pixData[k] + (spanOffset + i) * xInc[k];
+        }
+        return x;
+    }
+
+    /**
+     * Hands a run of covered pixels, started with begin(int, int), to the fragment
+     * processor.
+     */
+    protected final void emit(FragmentProcessor fp, FrameBuffer fb, int y, int x0, int count) {
+
+        pixelsCovered += count;
+        if (earlyDepth)
+            depthPasses += count;
+        fp.fragmentSpan(y, x0, count, spanBase, spanDx, fb);
+    }
+
+    /**
+     * Adds the pixel counters of this rasterizer to the given array as
+     * {pixels in bounding boxes, pixels visited, pixels shaded, pixels
+     * rejected by the early depth test} and resets them. Covered pixels are
+     * the sum of the last two.
+     * 
+     * @param counts The array to accumulate into.
+     */
+    public void drainCounters(long[] counts) {
+
+        counts[0] += pixelsInBox;
+        counts[1] += pixelsVisited;
+        counts[2] += pixelsCovered;
+        counts[3] += depthFails;
+        pixelsInBox = pixelsVisited = pixelsCovered = depthFails = depthPasses = 0;
+    }
+
+    /**
+     * Adds the occlusion counters of this rasterizer to the given array as
+     * {triangles rejected, coarse depth tiles skipped} and resets them.
+     * 
+     * @param counts The array to accumulate into.
+     */
+    public void drainOcclusionCounters(long[] counts) {
+
+        counts[0] += trianglesOccluded;
+        counts[1] += tilesOccluded;
+        trianglesOccluded = tilesOccluded = 0;
+    }
+
+    /**
+     * Adds the pixel and occlusion counters of this rasterizer to the given
+     * statistics and resets them. These are the same counters as those of
+     * drainCounters and drainOcclusionCounters.
+     * 
+     * @param s The statistics to accumulate into.
+     */
+    public void drainStatistics(PipelineStatistics s) {
+
+        s.pixelsInBox += pixelsInBox;
+        s.pixelsVisited += pixelsVisited;
+        s.pixelsCovered += pixelsCovered + depthFails;
+        s.fragmentsShaded += pixelsCovered;
+        s.depthPasses += depthPasses;
+        s.depthFails += depthFails;
+        s.trianglesOccluded += trianglesOccluded;
+        s.tilesOccluded += tilesOccluded;
+        pixelsInBox = pixelsVisited = pixelsCovered = depthFails = depthPasses = 0;
+        trianglesOccluded = tilesOccluded = 0;
+    }
+
 
     // Utility routines for clarity
 
@@ -159,4 +1286,14 @@ public class Rasterizer {
         return Math.max(Math.max(a, b), c);
     }
 
+    protected static long min(long a, long b, long c) {
+
+        return Math.min(Math.min(a, b), c);
+    }
+
+    protected static long max(long a, long b, long c) {
+
+        return Math.max(Math.max(a, b), c);
+    }
+
 }
@@ -0,0 +1,184 @@
+package pipeline;
+
+import pipeline.fragment.FragmentProcessor;
+import pipeline.misc.FrameBuffer;
+
+/**
+ * The classic scanline strategy: for every row, the columns where the left
+ * and right edges of the triangle cross it are solved for, and only the span
+ * between them is walked. Pixels well inside the span are emitted without
+ * coverage tests. Large and skinny triangles, whose bounding boxes are
+ * mostly empty, gain the most.
+ * 
+ * With fixed point edges the crossings are exact integer divisions, so not a
+ * single pixel outside the triangle is visited. With floating point edges
+ * the per-pixel test can round either way near an edge, so the pixels
+ * within a small margin of an edge are still tested like the bounding box
+ * walk tests them, and pixels clear of every edge are emitted directly.
+ * Multisampled pixels near an edge are always tested. Either way the
+ * fragments are the same as with the bounding box walk. The hierarchical
+ * option and the per-block occlusion test belong to the bounding box walk
+ * and are not used here.
+ */
+public class ScanlineStrategy extends RasterStrategy {
+
+    /**
+     * @see RasterStrategy#walk(Rasterizer, FragmentProcessor, FrameBuffer, int, int, int, int)
+     */
+    public void walk(Rasterizer r, FragmentProcessor fp, FrameBuffer fb, int xLo, int yLo, int xHi, int yHi) {
+
+        // Extra columns around the span that may hold covered pixels or
+        // samples the crossings do not account for
+        int widen = (r.snapped ? 0 : 1) + (r.samples > 1 ? 1 : 0);
+        float eps = Rasterizer.BLOCK_EPSILON;
+
+        if (fp.usesDerivatives()) {
+            walkQuads(r, fp, fb, xLo, yLo, xHi, yHi, widen);
+            return;
+        }
+
+        for (int y = yLo; y <= yHi; y++) {
+            int lo = left(r, y, xLo, xHi, -eps, widen);
+            int hi = right(r, y, xLo, xHi, -eps, widen);
+            if (lo > hi)
+                continue;
+
+            // The columns known to be covered without testing
+            int inLo = xHi + 1, inHi = xLo - 1;
+            if (r.samples == 1 && r.snapped) {
+                inLo = lo;
+                inHi = hi;
+            }
+            else if (r.samples == 1) {
+                inLo = left(r, y, xLo, xHi, eps, -1);
+                inHi = right(r, y, xLo, xHi, eps, -1);
+            }
+
+            // Each piece keeps the start column of its row segment, so its
+            // pixels get the values the bounding box walk gives them
+            int xEnd;
+            for (int xStart = lo; xStart <= hi; xStart = xEnd + 1) {
+                xEnd = Math.min(hi, xStart | (Rasterizer.BLOCK_SIZE - 1));
+                int xOrigin = Math.max(xLo, xStart & ~(Rasterizer.BLOCK_SIZE - 1));
+                r.span(fp, fb, y, xOrigin, xStart, xEnd, xStart < inLo || xEnd > inHi);
+            }
+        }
+    }
+
+    /**
+     * The walk for fragment processors that use derivatives: each line of
+     * quads covers the union of the spans of its two rows, extended to whole
+     * row segments so that the helper pixels are the same as with the
+     * bounding box walk.
+     */
+    protected void walkQuads(Rasterizer r, FragmentProcessor fp, FrameBuffer fb, int xLo, int yLo, int xHi, int yHi, int widen) {
+
+        float eps = Rasterizer.BLOCK_EPSILON;
+        for (int qy = yLo & ~1; qy <= yHi; qy += 2) {
+            int lo = xHi + 1, hi = xLo - 1;
+            for (int y = Math.max(qy, yLo); y <= Math.min(qy + 1, yHi); y++) {
+                lo = Math.min(lo, left(r, y, xLo, xHi, -eps, widen));
+                hi = Math.max(hi, right(r, y, xLo, xHi, -eps, widen));
+            }
+
+            int bx1;
+            for (int bx0 = Math.max(xLo, lo & ~(Rasterizer.BLOCK_SIZE - 1)); bx0 <= hi; bx0 = bx1 + 1) {
+                bx1 = Math.min(xHi, bx0 | (Rasterizer.BLOCK_SIZE - 1));
+                r.quadLine(fp, fb, qy, bx0, bx1, yLo, yHi, true);
+            }
+        }
+    }
+
+    /**
+     * Evaluates fixed point edge k at column 0 of row y, or at the sample row
+     * where it is largest when multisampling.
+     */
+    protected long fixedEdge(Rasterizer r, int k, int y) {
+
+        long v = r.eB[k] * y + r.eC[k];
+        if (r.samples > 1)
+            v += Math.abs(r.eB[k] >> Rasterizer.SUBPIXEL_BITS) * Rasterizer.SAMPLE_REACH;
+        return v;
+    }
+
+    /**
+     * Evaluates floating point edge k at the first vertex's column of row y,
+     * or at the sample row where it is largest when multisampling.
+     */
+    protected float floatEdge(Rasterizer r, int k, int y) {
+
+        float b = r.vData[0][k] + (y - r.posn[0].y) * r.yInc[k];
+        if (r.samples > 1)
+            b += Math.abs(r.yInc[k]) * Rasterizer.SAMPLE_REACH / (1 << Rasterizer.SUBPIXEL_BITS);
+        return b;
+    }
+
+    /**
+     * Finds the first column of row y, at least xLo, from which on the edges
+     * whose values grow to the right reach margin, moved left by widen
+     * columns. With fixed point edges the margin is ignored and the column
+     * is exact.
+     * 
+     * @return The column, or xHi + 1 if the row holds none.
+     */
+    protected int left(Rasterizer r, int y, int xLo, int xHi, float margin, int widen) {
+
+        long lo = xLo;
+        for (int k = 0; k < 3; k++) {
+            if (r.snapped) {
+                long a = r.eA[k], v = fixedEdge(r, k, y);
+                if (a > 0)
+                    lo = Math.max(lo, -Math.floorDiv(v, a) - widen);
+                else if (a == 0 && v < 0)
+                    return xHi + 1;
+            }
+            else {
+                float a = r.xInc[k], b = floatEdge(r, k, y);
+                if (a > 0) {
+                    double x = r.posn[0].x + (margin - b) / (double) a;
+                    if (x != x)
+                        return xHi + 1;
+                    lo = Math.max(lo, (long) Math.ceil(Math.min(x, xHi + 1)) - widen);
+                }
+                else if (a == 0 && !(b >= margin))
+                    return xHi + 1;
+            }
+        }
+        return (int) Math.min(lo, xHi + 1);
+    }
+
+    /**
+     * Finds the last column of row y, at most xHi, up to which the edges
+     * whose values grow to the left reach margin, moved right by widen
+     * columns. With fixed point edges the margin is ignored and the column
+     * is exact.
+     * 
+     * @return The column, or xLo - 1 if the row holds none.
+     */
+    protected int right(Rasterizer r, int y, int xLo, int xHi, float margin, int widen) {
+
+        long hi = xHi;
+        for (int k = 0; k < 3; k++) {
+            if (r.snapped) {
+                long a = r.eA[k], v = fixedEdge(r, k, y);
+                if (a < 0)
+                    hi = Math.min(hi, Math.floorDiv(v, -a) + widen);
+                else if (a == 0 && v < 0)
+                    return xLo - 1;
+            }
+            else {
+                float a = r.xInc[k], b = floatEdge(r, k, y);
+                if (a < 0) {
+                    double x = r.posn[0].x + (margin - b) / (double) a;
+                    if (x != x)
+                        return xLo - 1;
+                    hi = Math.min(hi, (long) Math.floor(Math.max(x, xLo - 1)) + widen);
+                }
+                else if (a == 0 && !(b >= margin))
+                    return xLo - 1;
+            }
+        }
+        return (int) Math.max(hi, xLo - 1);
+    }
+
+}
@@ -0,0 +1,369 @@
+package pipeline;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pipeline.fragment.FragmentProcessor;
+import pipeline.misc.FrameBuffer;
+import pipeline.misc.Texture;
+import pipeline.misc.Vertex;
+
+/**
+ * The tile-binned back end of the pipeline. Clipped triangles are stored in a
+ * flat array and binned into the screen tiles their bounding boxes overlap.
+ * When the frame is finished, a pool of workers takes the tiles one at a time
+ * and rasterizes the triangles of each tile, in submission order, into that
+ * tile's region of the framebuffer. Since every pixel belongs to exactly one
+ * tile and sees its triangles in the same order as the serial path, the image
+ * is identical to the serial one for any number of threads.
+ */
+public class TileBinner {
+
+    private static final Class<?>[] EMPTY_CLASS_ARRAY = new Class<?>[0];
+
+    private static final Object[] EMPTY_OBJECT_ARRAY = new Object[0];
+
+    /** The size of a tile, in pixels. */
+    public static final int TILE_SIZE = Rasterizer.TILE_SIZE;
+
+    /** Number of user-supplied attributes */
+    protected int na;
+
+    /** Width and height of the image */
+    protected int nx, ny;
+
+    /** Number of tiles in each direction */
+    protected int ntx, nty;
+
+    /**
+     * Pixels by which the triangles' bounding boxes are widened so that no
+     * tile misses a covered pixel or sample: 1 when multisampling, plus 1
+     * with fixed point edges, since snapping a vertex to the subpixel grid
+     * can move it onto the next pixel center.
+     */
+    protected int margin;
+
+    /** Number of floats stored per vertex: x, y, z, w and the attributes. */
+    protected int vertexSize;
+
+    /** The stored triangles, 3 * vertexSize floats each. */
+    protected float[] tris = new float[0];
+
+    /** The number of stored triangles. */
+    protected int nTris;
+
+    /** For each tile, the indices of the triangles overlapping it. */
+    protected int[][] bins;
+
+    /** The number of triangles in each bin. */
+    protected int[] binCount;
+
+    /** The per-thread rasterization state. */
+    protected Worker[] workers;
+
+    /** The threads running the workers. */
+    protected ExecutorService pool;
+
+    /** The next tile to be handed out during a flush. */
+    protected final AtomicInteger nextTile = new AtomicInteger();
+
+    /** The framebuffer being drawn into during a flush. */
+    protected FrameBuffer target;
+
+    /**
+     * Creates a binner for the given fragment processor class. Each of the
+     * nThreads workers gets its own instance of the fragment processor and
+     * its own rasterizer, of the same kind and set up like the given one.
+     *
+     * @param fpClass The class of the fragment processor.
+     * @param prototype The rasterizer whose size and options the workers use.
+     * @param nThreads The number of worker threads.
+     */
+    public TileBinner(Class<?> fpClass, Rasterizer prototype, int nThreads) {
+
+        na = prototype.na;
+        nx = prototype.nx;
+        ny = prototype.ny;
+        ntx = (nx + TILE_SIZE - 1) / TILE_SIZE;
+        nty = (ny + TILE_SIZE - 1) / TILE_SIZE;
+        vertexSize = 4 + na;
+
+        bins = new int[ntx * nty][16];
+        binCount = new int[ntx * nty];
+
+        workers = new Worker[nThreads];
+        try {
+            Constructor<?> c = fpClass.getConstructor(EMPTY_CLASS_ARRAY);
+            for (int i = 0; i < nThreads; i++)
+                workers[i] = new Worker((FragmentProcessor) c.newInstance(EMPTY_OBJECT_ARRAY), prototype.isVectorized());
+            setOptions(prototype);
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        pool = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+
+                Thread t = new Thread(r, "raster");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Sets the texture used by the fragment processors of all workers.
+     *
+     * @param texture The new texture to use.
+     */
+    public void setTexture(Texture texture) {
+
+        for (int i = 0; i < workers.length; i++)
+            workers[i].fp.setTexture(texture);
+    }
+
+    /**
+     * Copies the rasterization options of the given rasterizer to the
+     * rasterizers of all workers.
+     *
+     * @param r The rasterizer to copy the options from.
+     */
+    public void setOptions(Rasterizer r) {
+
+        for (int i = 0; i < workers.length; i++)
+            workers[i].rasterizer.copyOptions(r);
+        margin = (r.getSamples() > 1 ? 1 : 0) + (r.isFixedPoint() ? 1 : 0);
+    }
+
+    /**
+     * Adds the pixel counters of all workers to the given array.
+     *
+     * @param counts The array to accumulate into.
+     * @see Rasterizer#drainCounters(long[])
+     */
+    public void drainCounters(long[] counts) {
+
+        for (int i = 0; i < workers.length; i++)
+            workers[i].rasterizer.drainCounters(counts);
+    }
+
+    /**
+     * Adds the occlusion counters of all workers to the given array.
+     *
+     * @param counts The array to accumulate into.
+     * @see Rasterizer#drainOcclusionCounters(long[])
+     */
+    public void drainOcclusionCounters(long[] counts) {
+
+        for (int i = 0; i < workers.length; i++)
+            workers[i].rasterizer.drainOcclusionCounters(counts);
+    }
+
+    /**
+     * Adds the pixel and occlusion counters of all workers to the given
+     * statistics.
+     *
+     * @param s The statistics to accumulate into.
+     * @see Rasterizer#drainStatistics(PipelineStatistics)
+     */
+    public void drainStatistics(PipelineStatistics s) {
+
+        for (int i = 0; i < workers.length; i++)
+            workers[i].rasterizer.drainStatistics(s);
+    }
+
+    /**
+     * Stores a clipped triangle and adds it to the bins of all the tiles its
+     * bounding box overlaps.
+     *
+     * @param vs The 3 vertices of the triangle.
+     */
+    public void add(Vertex[] vs) {
+
+        float xMin = Float.MAX_VALUE, xMax = -Float.MAX_VALUE;
+        float yMin = Float.MAX_VALUE, yMax = -Float.MAX_VALUE;
+        for (int iv = 0; iv < 3; iv++) {
+            float invW = 1.0f / vs[iv].v.w;
+            float x = vs[iv].v.x * invW, y = vs[iv].v.y * invW;
+            xMin = Math.min(xMin, x);
+            xMax = Math.max(xMax, x);
+            yMin = Math.min(yMin, y);
+            yMax = Math.max(yMax, y);
+        }
+
+        int offset = store(xMin, xMax, yMin, yMax);
+        if (offset < 0)
+            return;
+        for (int iv = 0; iv < 3; iv++) {
+            tris[offset++] = vs[iv].v.x;
+            tris[offset++] = vs[iv].v.y;
+            tris[offset++] = vs[iv].v.z;
+            tris[offset++] = vs[iv].v.w;
+            for (int ia = 0; ia < na; ia++)
+                tris[offset++] = vs[iv].attrs[ia];
+        }
+    }
+
+    /**
+     * Like add(Vertex[]), for a triangle of a batch, read straight from the
+     * batch arrays.
+     *
+     * @param b The batch, which must have been projected.
+     * @param i The index of the triangle.
+     * @param reverse True to swap the last two vertices.
+     */
+    void add(TriangleBatch b, int i, boolean reverse) {
+
+        final int i1 = i + TriangleBatch.SIZE, i2 = i + 2 * TriangleBatch.SIZE;
+        float xMin = Math.min(Math.min(b.sx[i], b.sx[i1]), b.sx[i2]), xMax = Math.max(Math.max(b.sx[i], b.sx[i1]), b.sx[i2]);
+        float yMin = Math.min(Math.min(b.sy[i], b.sy[i1]), b.sy[i2]), yMax = Math.max(Math.max(b.sy[i], b.sy[i1]), b.sy[i2]);
+
+        int offset = store(xMin, xMax, yMin, yMax);
+        if (offset < 0)
+            return;
+        for (int iv = 0; iv < 3; iv++) {
+            int j = i + TriangleBatch.SIZE * (reverse && iv != 0 ? 3 - iv : iv);
+            tris[offset++] = b.x[j];
+            tris[offset++] = b.y[j];
+            tris[offset++] = b.z[j];
+            tris[offset++] = b.w[j];
+            for (int ia = 0; ia < na; ia++)
+                tris[offset++] = b.attrs[ia][j];
+        }
+    }
+
+    /**
+     * Adds a new triangle to the bins of all the tiles the given bounding box
+     * overlaps and makes room for its record.
+     *
+     * @return The offset of the record in tris, or -1 if the box overlaps no
+     *         tile and the triangle is dropped.
+     */
+    protected int store(float xMin, float xMax, float yMin, float yMax) {
+
+        // The rasterizer's bounding box, or a slightly larger one, in tiles
+        int txMin = Math.max(0, (int) Math.ceil(xMin) - margin) / TILE_SIZE;
+        int txMax = Math.min(nx - 1, (int) Math.floor(xMax) + margin);
+        int tyMin = Math.max(0, (int) Math.ceil(yMin) - margin) / TILE_SIZE;
+        int tyMax = Math.min(ny - 1, (int) Math.floor(yMax) + margin);
+        if (txMax < 0 || tyMax < 0 || txMin * TILE_SIZE > txMax || tyMin * TILE_SIZE > tyMax)
+            return -1;
+        txMax /= TILE_SIZE;
+        tyMax /= TILE_SIZE;
+
+        if ((nTris + 1) * 3 * vertexSize > tris.length) {
+            float[] newTris = new float[Math.max(1024, 2 * tris.length)];
+            System.arraycopy(tris, 0, newTris, 0, nTris * 3 * vertexSize);
+            tris = newTris;
+        }
+
+        for (int ty = tyMin; ty <= tyMax; ty++) {
+            for (int tx = txMin; tx <= txMax; tx++) {
+                int tile = tx + ntx * ty;
+                if (binCount[tile] == bins[tile].length) {
+                    int[] newBin = new int[2 * bins[tile].length];
+                    System.arraycopy(bins[tile], 0, newBin, 0, binCount[tile]);
+                    bins[tile] = newBin;
+                }
+                bins[tile][binCount[tile]++] = nTris;
+            }
+        }
+        return nTris++ * 3 * vertexSize;
+    }
+
+    /**
+     * Rasterizes all stored triangles into the framebuffer and empties the
+     * bins. Returns once every tile is finished.
+     *
+     * @param fb The framebuffer to draw into.
+     */
+    public void flush(FrameBuffer fb) {
+
+        if (nTris == 0)
+            return;
+
+        target = fb;
+        nextTile.set(0);
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(workers.length);
+        for (int i = 0; i < workers.length; i++)
+            tasks.add(workers[i]);
+        try {
+            for (Future<Object> f : pool.invokeAll(tasks))
+                f.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+
+        for (int tile = 0; tile < binCount.length; tile++)
+            binCount[tile] = 0;
+        nTris = 0;
+        target = null;
+    }
+
+    /**
+     * Stops the worker threads. The binner cannot be used afterwards.
+     */
+    public void dispose() {
+
+        pool.shutdown();
+    }
+
+    /**
+     * The state owned by one worker thread: a rasterizer with its own scratch
+     * arrays and fragment, a fragment processor and the vertices of the
+     * triangle currently being drawn.
+     */
+    protected class Worker implements Callable<Object> {
+
+        protected final FragmentProcessor fp;
+
+        protected final Rasterizer rasterizer;
+
+        protected final Vertex[] triangle = { new Vertex(), new Vertex(), new Vertex() };
+
+        Worker(FragmentProcessor newFp, boolean vectorized) {
+
+            fp = newFp;
+            rasterizer = Rasterizer.create(na, nx, ny, vectorized);
+            for (int iv = 0; iv < 3; iv++)
+                triangle[iv].setAttrs(na);
+        }
+
+        public Object call() {
+
+            int tile;
+            while ((tile = nextTile.getAndIncrement()) < binCount.length) {
+                int x0 = (tile % ntx) * TILE_SIZE, y0 = (tile / ntx) * TILE_SIZE;
+                int x1 = Math.min(nx, x0 + TILE_SIZE) - 1, y1 = Math.min(ny, y0 + TILE_SIZE) - 1;
+                int[] bin = bins[tile];
+                for (int i = 0; i < binCount[tile]; i++) {
+                    int offset = bin[i] * 3 * vertexSize;
+                    for (int iv = 0; iv < 3; iv++) {
+                        triangle[iv].v.set(tris[offset], tris[offset + 1], tris[offset + 2], tris[offset + 3]);
+                        offset += 4;
+                        for (int ia = 0; ia < na; ia++)
+                            triangle[iv].attrs[ia] = tris[offset++];
+                    }
+                    rasterizer.rasterize(triangle, fp, target, x0, y0, x1, y1);
+                }
+            }
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,170 @@
+package pipeline;
+
+import pipeline.misc.Vertex;
+
+/**
+ * A batch of processed triangles waiting to be culled, clipped and drawn,
+ * stored as a structure of arrays: one flat array for each coordinate and
+ * each attribute, holding that value for every vertex of every triangle.
+ * Vertex iv of triangle i is at index iv * SIZE + i, so a loop over the
+ * triangles of the batch reads each array with unit stride. The pipeline
+ * collects triangles here instead of handling them one at a time: the winding
+ * test, the clipper's outcodes and the perspective division each run over the
+ * whole batch in one loop, and the triangles that need no clipping are set up
+ * by the rasterizer or binner straight from these arrays. Only the few
+ * triangles that must be clipped are copied out into vertex objects.
+ */
+class TriangleBatch {
+
+    /** The number of triangles a batch holds. */
+    static final int SIZE = 256;
+
+    /** Number of user-supplied attributes */
+    protected final int na;
+
+    /** The number of triangles in the batch. */
+    protected int size;
+
+    /** The homogeneous screen space positions of the vertices. */
+    protected final float[] x = new float[3 * SIZE], y = new float[3 * SIZE], z = new float[3 * SIZE], w = new float[3 * SIZE];
+
+    /** The attributes of the vertices, one array per attribute. */
+    protected final float[][] attrs;
+
+    /**
+     * The winding determinant of each triangle, as computed by
+     * computeDeterminants.
+     */
+    protected final float[] det = new float[SIZE];
+
+    /**
+     * The indices of the triangles that survive the winding test, in order,
+     * and their number. The later passes only look at these.
+     */
+    protected final int[] live = new int[SIZE];
+
+    protected int nLive;
+
+    /**
+     * The clip planes each triangle crosses, as computed by
+     * Clipper.classify: 0 if it needs no clipping, or -1 if it lies entirely
+     * outside the view.
+     */
+    protected final int[] clipPlanes = new int[SIZE];
+
+    /**
+     * The screen space positions of the vertices after the perspective
+     * division, and the inverse w coordinates, as computed by project.
+     */
+    protected final float[] sx = new float[3 * SIZE], sy = new float[3 * SIZE], sz = new float[3 * SIZE], invW = new float[3 * SIZE];
+
+    /** The vertices a triangle of the batch is copied into for clipping. */
+    protected final Vertex[] triangle = { new Vertex(), new Vertex(), new Vertex() };
+
+    /**
+     * Creates an empty batch.
+     *
+     * @param newNa The number of attributes of each vertex.
+     */
+    TriangleBatch(int newNa) {
+
+        na = newNa;
+        attrs = new float[na][3 * SIZE];
+        for (int iv = 0; iv < 3; iv++)
+            triangle[iv].setAttrs(na);
+    }
+
+    /**
+     * Appends a triangle to the batch, which must not be full.
+     *
+     * @param vs The 3 vertices of the triangle; they are copied.
+     * @return True if the batch is full now.
+     */
+    boolean add(Vertex[] vs) {
+
+        int i = size++;
+        for (int iv = 0; iv < 3; iv++, i += SIZE) {
+            Vertex vertex = vs[iv];
+            x[i] = vertex.v.x;
+            y[i] = vertex.v.y;
+            z[i] = vertex.v.z;
+            w[i] = vertex.v.w;
+            for (int ia = 0; ia < na; ia++)
+                attrs[ia][i] = vertex.attrs[ia];
+        }
+        return size == SIZE;
+    }
+
+    /**
+     * Computes the winding determinant of every triangle of the batch, the
+     * determinant of the rows (x, y, w) of its vertices in homogeneous screen
+     * space, positive for counterclockwise triangles.
+     */
+    void computeDeterminants() {
+
+        final int i1 = SIZE, i2 = 2 * SIZE;
+        for (int i = 0; i < size; i++) {
+            float x0 = x[i], y0 = y[i], w0 = w[i];
+            float x1 = x[i1 + i], y1 = y[i1 + i], w1 = w[i1 + i];
+            float x2 = x[i2 + i], y2 = y[i2 + i], w2 = w[i2 + i];
+            det[i] = x0 * (y1 * w2 - y2 * w1) - y0 * (x1 * w2 - x2 * w1) + w0 * (x1 * y2 - x2 * y1);
+        }
+    }
+
+    /**
+     * Divides the positions of the vertices of the live triangles by their w
+     * coordinates, the same way the rasterizer and the binner do.
+     */
+    void project() {
+
+        for (int iv = 0; iv < 3; iv++) {
+            for (int k = 0; k < nLive; k++) {
+                int i = iv * SIZE + live[k];
+                float iw = 1.0f / w[i];
+                invW[i] = iw;
+                sx[i] = iw * x[i];
+                sy[i] = iw * y[i];
+                sz[i] = iw * z[i];
+            }
+        }
+    }
+
+    /**
+     * Returns the area in pixels of a projected triangle of the batch.
+     *
+     * @param i The index of the triangle.
+     * @return The area.
+     */
+    float screenArea(int i) {
+
+        float dx1 = sx[SIZE + i] - sx[i], dy1 = sy[SIZE + i] - sy[i];
+        float dx2 = sx[2 * SIZE + i] - sx[i], dy2 = sy[2 * SIZE + i] - sy[i];
+        return 0.5f * Math.abs(dx1 * dy2 - dx2 * dy1);
+    }
+
+    /**
+     * Copies one triangle of the batch into vertex objects.
+     *
+     * @param i The index of the triangle.
+     * @param vs The 3 vertices to fill in.
+     * @param reverse True to swap the last two vertices, reversing the winding.
+     */
+    void get(int i, Vertex[] vs, boolean reverse) {
+
+        for (int iv = 0; iv < 3; iv++, i += SIZE) {
+            Vertex vertex = vs[reverse && iv != 0 ? 3 - iv : iv];
+            vertex.v.set(x[i], y[i], z[i], w[i]);
+            for (int ia = 0; ia < na; ia++)
+                vertex.attrs[ia] = attrs[ia][i];
+        }
+    }
+
+    /**
+     * Empties the batch.
+     */
+    void clear() {
+
+        size = 0;
+    }
+
+}
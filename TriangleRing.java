@@ -0,0 +1,238 @@
+package pipeline;
+
+import java.util.concurrent.locks.LockSupport;
+
+import pipeline.misc.Vertex;
+
+/**
+ * A bounded queue of triangles passed from one thread to another. The
+ * triangles are stored as flat records of 3 * (4 + na) floats in a ring
+ * preallocated when the queue is created, so passing a triangle allocates
+ * nothing. Exactly one thread may put triangles in and exactly one may take
+ * them out, though another thread may drain the ring while the producer is
+ * idle; they only synchronize through the volatile head and tail
+ * counters. A thread that has to wait spins briefly and then parks until the
+ * other end changes the ring, fails or is stopped.
+ */
+public class TriangleRing {
+
+    /** Busy waits made before a waiting thread starts to sleep. */
+    private static final int SPINS = 64;
+
+    /** Number of user-supplied attributes */
+    protected int na;
+
+    /** Number of floats stored per triangle. */
+    protected int recordSize;
+
+    /** The number of triangles the ring holds. */
+    protected int capacity;
+
+    /** The stored triangles. */
+    protected float[] records;
+
+    /**
+     * The number of triangles ever put in, and the number ever released by
+     * the consumer. The ring is empty when they are equal.
+     */
+    protected volatile long head, tail;
+
+    /**
+     * The threads sleeping until the ring is no longer full or empty, or
+     * null. Each is set before its thread checks the ring one last time and
+     * parks, so a change made after that check always finds it.
+     */
+    protected volatile Thread waitingProducer, waitingConsumer;
+
+    /** The thread on the other end of the ring, checked while waiting. */
+    protected final Stage stage;
+
+    /**
+     * Creates an empty ring.
+     *
+     * @param newNa The number of attributes of each vertex.
+     * @param newCapacity The number of triangles the ring holds.
+     * @param newStage The stage whose failure ends waiting on this ring.
+     */
+    public TriangleRing(int newNa, int newCapacity, Stage newStage) {
+
+        na = newNa;
+        recordSize = 3 * (4 + na);
+        capacity = newCapacity;
+        records = new float[capacity * recordSize];
+        stage = newStage;
+        stage.input = this;
+    }
+
+    /**
+     * Appends a triangle, waiting while the ring is full. Called by the
+     * producer only.
+     *
+     * @param vs The 3 vertices of the triangle; they are copied.
+     */
+    public void put(Vertex[] vs) {
+
+        long h = head;
+        int spins = 0;
+        while (h - tail == capacity)
+            idle(spins++, false);
+        if (spins > SPINS)
+            waitingProducer = null;
+
+        int offset = (int) (h % capacity) * recordSize;
+        for (int iv = 0; iv < 3; iv++) {
+            records[offset++] = vs[iv].v.x;
+            records[offset++] = vs[iv].v.y;
+            records[offset++] = vs[iv].v.z;
+            records[offset++] = vs[iv].v.w;
+            for (int ia = 0; ia < na; ia++)
+                records[offset++] = vs[iv].attrs[ia];
+        }
+        head = h + 1;
+        wake(waitingConsumer);
+    }
+
+    /**
+     * Copies the oldest triangle into the given vertices, waiting while the
+     * ring is empty. The triangle stays in the ring until release is called.
+     * Called by the consumer only.
+     *
+     * @param vs The 3 vertices to fill in.
+     * @return False if the stage was stopped while waiting.
+     */
+    public boolean take(Vertex[] vs) {
+
+        long t = tail;
+        int spins = 0;
+        while (head == t) {
+            if (!stage.running)
+                return false;
+            idle(spins++, true);
+        }
+        if (spins > SPINS)
+            waitingConsumer = null;
+
+        int offset = (int) (t % capacity) * recordSize;
+        for (int iv = 0; iv < 3; iv++) {
+            vs[iv].v.set(records[offset], records[offset + 1], records[offset + 2], records[offset + 3]);
+            offset += 4;
+            for (int ia = 0; ia < na; ia++)
+                vs[iv].attrs[ia] = records[offset++];
+        }
+        return true;
+    }
+
+    /**
+     * Removes the triangle returned by the last take, once the consumer is
+     * done with it.
+     */
+    public void release() {
+
+        tail = tail + 1;
+        wake(waitingProducer);
+    }
+
+    /**
+     * Waits until every triangle put in has been released. Called by the
+     * producer once it has stopped putting triangles in, or by another thread
+     * once the producer is known to put no more in; the caller then waits in
+     * the producer's place, so the two must not wait at the same time.
+     */
+    public void drain() {
+
+        int spins = 0;
+        while (tail != head)
+            idle(spins++, false);
+        if (spins > SPINS)
+            waitingProducer = null;
+    }
+
+    /**
+     * Waits a little: spinning at first, then registering the thread as the
+     * waiting producer or consumer, and from then on parking until woken.
+     * The caller checks the ring again after each call. Gives up with the
+     * failure of the stage if it has died.
+     *
+     * @param spins The number of times this wait has idled already.
+     * @param consumer True if the consumer is waiting, false for the producer.
+     */
+    protected void idle(int spins, boolean consumer) {
+
+        if (stage.failure != null)
+            throw new RuntimeException(stage.failure);
+        if (spins < SPINS)
+            Thread.yield();
+        else if (spins > SPINS)
+            LockSupport.park(this);
+        else if (consumer)
+            waitingConsumer = Thread.currentThread();
+        else
+            waitingProducer = Thread.currentThread();
+    }
+
+    /**
+     * Unparks a waiting thread, if there is one.
+     *
+     * @param waiter The thread, or null.
+     */
+    private static void wake(Thread waiter) {
+
+        if (waiter != null)
+            LockSupport.unpark(waiter);
+    }
+
+    /**
+     * A thread consuming one of the rings. Its failure is reported to the
+     * threads waiting on it through the rings.
+     */
+    public static abstract class Stage extends Thread {
+
+        /** Cleared to stop the thread once its ring is empty. */
+        protected volatile boolean running = true;
+
+        /** The exception that ended the thread, if any. */
+        protected volatile Throwable failure;
+
+        /** The ring the thread consumes, set when the ring is created. */
+        protected TriangleRing input;
+
+        /**
+         * Creates a daemon stage thread.
+         *
+         * @param name The name of the thread.
+         */
+        protected Stage(String name) {
+
+            super(name);
+            setDaemon(true);
+        }
+
+        public void run() {
+
+            try {
+                work();
+            }
+            catch (Throwable e) {
+                failure = e;
+                if (input != null)
+                    wake(input.waitingProducer);
+            }
+        }
+
+        /**
+         * Takes triangles from the stage's ring and processes them until the
+         * stage is stopped.
+         */
+        protected abstract void work();
+
+        /**
+         * Stops the thread once it has nothing left to do.
+         */
+        public void shutdown() {
+
+            running = false;
+            LockSupport.unpark(this);
+        }
+    }
+
+}
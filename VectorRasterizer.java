@@ -0,0 +1,118 @@
+package pipeline;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+import pipeline.misc.FrameBuffer;
+
+/**
+ * A rasterizer that tests the pixels of a span with the incubating Java Vector
+ * API: the three edge functions, the coverage and the interpolated depth of
+ * all pixels of a span are evaluated in the lanes of one vector, and the depth
+ * lanes are compared with the z buffer in one go. The lane count is that of
+ * the widest long vector the CPU supports natively, with float vectors of the
+ * same lane count, and spans longer than that are tested in several pieces.
+ * On CPUs with fewer than MIN_LANES long lanes, Rasterizer.create keeps the
+ * scalar rasterizer, which is faster there.
+ * 
+ * This class needs the jdk.incubator.vector module at compile time and at run
+ * time (--add-modules jdk.incubator.vector). It is only ever loaded through
+ * Rasterizer.create, which falls back to the scalar rasterizer when the
+ * module is missing.
+ */
+public class VectorRasterizer extends Rasterizer {
+
+    /** Long lanes for the fixed point edge functions, one per pixel. */
+    protected static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+
+    /** Float lanes, as many as LONGS. */
+    protected static final VectorSpecies<Float> FLOATS = VectorSpecies.of(float.class, VectorShape.forBitSize(LONGS.vectorBitSize() / 2));
+
+    /** The number of pixels tested at once. */
+    protected static final int LANES = LONGS.length();
+
+    /** The fewest lanes for which the vectors beat the scalar tests. */
+    public static final int MIN_LANES = 4;
+
+    /** The pixel index of each lane. */
+    protected static final FloatVector FLOAT_IOTA;
+
+    protected static final LongVector LONG_IOTA;
+
+    static {
+        float[] fi = new float[FLOATS.length()];
+        long[] li = new long[LONGS.length()];
+        for (int i = 0; i < fi.length; i++)
+            fi[i] = li[i] = i;
+        FLOAT_IOTA = FloatVector.fromArray(FLOATS, fi, 0);
+        LONG_IOTA = LongVector.fromArray(LONGS, li, 0);
+    }
+
+    /**
+     * The only constructor.
+     * 
+     * @param newNa The number of user defined attributes.
+     * @param newNx The width of the image.
+     * @param newNy The height of the image.
+     */
+    public VectorRasterizer(int newNa, int newNx, int newNy) {
+
+        super(newNa, newNx, newNy);
+    }
+
+    public boolean isVectorized() {
+
+        return true;
+    }
+
+    /**
+     * Tells whether the CPU has vectors wide enough for this rasterizer to
+     * pay off.
+     * 
+     * @return True if the preferred long vector has at least MIN_LANES lanes.
+     */
+    public static boolean isSupported() {
+
+        return LANES >= MIN_LANES;
+    }
+
+    /**
+     * @see Rasterizer#coverage(FrameBuffer, int, int, int, boolean)
+     */
+    protected long coverage(FrameBuffer fb, int y, int xStart, int n, boolean test) {
+
+        if (samples > 1)
+            return super.coverage(fb, y, xStart, n, test);
+
+        long mask = 0;
+        for (int i0 = 0; i0 < n; i0 += LANES) {
+            int m = Math.min(LANES, n - i0), x = xStart + i0;
+            long piece = -1L >>> (64 - m);
+            FloatVector index = FLOAT_IOTA.add(spanOffset + i0);
+            if (test && snapped) {
+                LongVector e0 = LONG_IOTA.mul(eA[0]).add(eA[0] * x + eB[0] * y + eC[0]);
+                LongVector e1 = LONG_IOTA.mul(eA[1]).add(eA[1] * x + eB[1] * y + eC[1]);
+                LongVector e2 = LONG_IOTA.mul(eA[2]).add(eA[2] * x + eB[2] * y + eC[2]);
+                piece &= e0.or(e1).or(e2).compare(VectorOperators.GE, 0L).toLong();
+            }
+            else if (test) {
+                for (int k = 0; k < 3; k++)
+                    piece &= index.mul(xInc[k]).add(pixData[k]).compare(VectorOperators.GE, 0f).toLong();
+            }
+
+            if (earlyDepth && piece != 0) {
+                FloatVector z = index.mul(xInc[3]).add(pixData[3]);
+                FloatVector zStored = FloatVector.fromArray(FLOATS, fb.getZData(), x + fb.getWidth() * y, FLOATS.indexInRange(0, m));
+                long pass = z.compare(VectorOperators.LT, zStored).toLong();
+                depthFails += Long.bitCount(piece & ~pass);
+                piece &= pass;
+            }
+            mask |= piece << i0;
+        }
+        return mask;
+    }
+
+}
@@ -0,0 +1,129 @@
+package pipeline;
+
+import java.util.Arrays;
+
+import javax.vecmath.Vector3f;
+
+import pipeline.math.Matrix4f;
+import pipeline.misc.Vertex;
+
+/**
+ * An indexed triangle list together with the vertex processor's outputs for
+ * its vertices. Pipeline.drawElements uses one of these for each call and
+ * drawInstanced one for each instance, while the buffers created with
+ * Pipeline.createBuffer keep theirs across frames:
+ * the outputs stay valid for as long as the vertex processor class and the
+ * transforms they were computed with are unchanged.
+ */
+class VertexBuffer {
+
+    /** The vertex attributes, as in Pipeline.drawElements. */
+    float[] positions, normals, colors, texcoords;
+
+    /** The vertex indices of the triangles. */
+    int[] indices;
+
+    /** The processed vertices, by index. */
+    Vertex[] cache = new Vertex[0];
+
+    /** The stamp each entry of the cache was processed under. */
+    int[] cacheStamp = new int[0];
+
+    /** The current stamp; cache entries with an older one are stale. */
+    int stamp = 1;
+
+    /** The vertex processor class the cache was filled by. */
+    Class<?> vpClass;
+
+    /**
+     * A sphere containing all vertices, in object coordinates. Only computed
+     * for retained buffers.
+     */
+    final Vector3f center = new Vector3f();
+
+    float radius;
+
+    /** The transforms the cache was filled with. */
+    final Matrix4f modelview = new Matrix4f(), projection = new Matrix4f(), viewport = new Matrix4f();
+
+    /**
+     * Sets the arrays of the buffer and makes room in the cache for all of
+     * its vertices. The cache entries are not invalidated.
+     */
+    void setData(float[] newPositions, float[] newNormals, float[] newColors, float[] newTexcoords, int[] newIndices) {
+
+        positions = newPositions;
+        normals = newNormals;
+        colors = newColors;
+        texcoords = newTexcoords;
+        indices = newIndices;
+
+        int nVerts = positions.length / 3;
+        if (cache.length < nVerts) {
+            Vertex[] newCache = new Vertex[nVerts];
+            System.arraycopy(cache, 0, newCache, 0, cache.length);
+            for (int i = cache.length; i < nVerts; i++)
+                newCache[i] = new Vertex();
+            cache = newCache;
+            cacheStamp = Arrays.copyOf(cacheStamp, nVerts);
+        }
+    }
+
+    /**
+     * Computes the bounding sphere, centered on the bounding box of the
+     * vertices.
+     */
+    void computeBounds() {
+
+        float[] min = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+        float[] max = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+        for (int i = 0; i < positions.length; i++) {
+            min[i % 3] = Math.min(min[i % 3], positions[i]);
+            max[i % 3] = Math.max(max[i % 3], positions[i]);
+        }
+        center.set(0.5f * (min[0] + max[0]), 0.5f * (min[1] + max[1]), 0.5f * (min[2] + max[2]));
+
+        float r2 = 0;
+        for (int i = 0; i + 2 < positions.length; i += 3) {
+            float dx = positions[i] - center.x, dy = positions[i + 1] - center.y, dz = positions[i + 2] - center.z;
+            r2 = Math.max(r2, dx * dx + dy * dy + dz * dz);
+        }
+        radius = (float) Math.sqrt(r2);
+    }
+
+    /**
+     * Marks all processed vertices as stale.
+     */
+    void invalidate() {
+
+        if (++stamp == 0) {
+            Arrays.fill(cacheStamp, 0);
+            stamp = 1;
+        }
+    }
+
+    /**
+     * Checks the cache against the current vertex processor class and
+     * transforms, and invalidates it if any of them changed since it was
+     * filled.
+     */
+    void validate(Class<?> newVpClass, Matrix4f newModelview, Matrix4f newProjection, Matrix4f newViewport) {
+
+        if (newVpClass == vpClass && same(modelview, newModelview) && same(projection, newProjection) && same(viewport, newViewport))
+            return;
+        vpClass = newVpClass;
+        modelview.set(newModelview);
+        projection.set(newProjection);
+        viewport.set(newViewport);
+        invalidate();
+    }
+
+    private static boolean same(Matrix4f a, Matrix4f b) {
+
+        for (int i = 0; i < 4; i++)
+            if (!Arrays.equals(a.m[i], b.m[i]))
+                return false;
+        return true;
+    }
+
+}
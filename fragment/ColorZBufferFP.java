@@ -17,6 +17,13 @@ public class ColorZBufferFP extends FragmentProcessor {
         return 3;   // surface color (r,g,b)
     }
 
+    /**
+     * @see FragmentProcessor#earlyDepthTest()
+     */
+    public boolean earlyDepthTest() {
+        return true;
+    }
+
     /**
      * @see FragmentProcessor#fragment(Fragment, FrameBuffer)
      */
@@ -26,4 +33,23 @@ public class ColorZBufferFP extends FragmentProcessor {
     	}
     }
 
+    /**
+     * The rasterizer only hands over pixels that passed its depth test, so
+     * they are written without testing again.
+     * 
+     * @see FragmentProcessor#fragmentSpan(int, int, int, float[], float[], FrameBuffer)
+     */
+    public void fragmentSpan(int y, int x0, int count, float[] attrBase, float[] attrDx, FrameBuffer fb) {
+        float z = attrBase[0], r = attrBase[1], g = attrBase[2], b = attrBase[3], q = attrBase[4];
+        for (int x = x0; x < x0 + count; x++) {
+            float w = 1.0f / q;
+            fb.set(x, y, r * w, g * w, b * w, z);
+            z += attrDx[0];
+            r += attrDx[1];
+            g += attrDx[2];
+            b += attrDx[3];
+            q += attrDx[4];
+        }
+    }
+
 }
\ No newline at end of file
@@ -26,6 +26,15 @@ public abstract class FragmentProcessor {
     /** A reference to the currently loaded texture. */
     protected Texture texture;
 
+    /** Qualifier of an attribute interpolated with perspective correction. */
+    public static final int PERSPECTIVE = 0;
+
+    /** Qualifier of an attribute interpolated linearly in screen space. */
+    public static final int SCREEN_LINEAR = 1;
+
+    /** Qualifier of an attribute taken from the first vertex of the triangle. */
+    public static final int FLAT = 2;
+
     /**
      * Returns the number of attributes this fragment processor will use.
      * 
@@ -48,6 +57,144 @@ public abstract class FragmentProcessor {
      */
     public abstract void fragment(Fragment f, FrameBuffer fb);
 
+    /**
+     * Returns the fragment values this processor reads, as a bit mask over the
+     * entries of Fragment.attrs: bit 0 is z and bit 1 + k is attribute k. The
+     * rasterizer only sets up and interpolates the values in the mask (and z,
+     * if it does the early depth test); the others are left undefined.
+     *
+     * @return The read mask; the default reads everything.
+     */
+    public int attrReadMask() {
+
+        return -1;
+    }
+
+    /**
+     * Returns how attribute k is interpolated: PERSPECTIVE (the default),
+     * SCREEN_LINEAR, which saves the division by w, or FLAT, which takes the
+     * value of the first vertex and does no interpolation at all.
+     *
+     * @param k The attribute, from 0 to nAttr() - 1.
+     * @return The qualifier of the attribute.
+     */
+    public int attrQualifier(int k) {
+
+        return PERSPECTIVE;
+    }
+
+    /**
+     * Returns true if this processor does the standard z buffer test: it
+     * discards every fragment whose z is not less than fb.getZ(x, y) and
+     * writes the z of the others. The rasterizer then runs the test itself
+     * before interpolating the attributes, and only hands over the fragments
+     * that pass it.
+     *
+     * @return True if the rasterizer may do the depth test early.
+     */
+    public boolean earlyDepthTest() {
+
+        return false;
+    }
+
+    /** The fragment and the stepped values used by the default fragmentSpan */
+    private Fragment spanFrag;
+    private float[] spanData;
+
+    /** The qualifiers of the attributes read, -1 for the others */
+    private int[] spanQualifiers;
+
+    /**
+     * Processes a run of count covered pixels (x0, y) ... (x0 + count - 1, y).
+     * The values handed over are the ones the rasterizer interpolates linearly
+     * in screen space: attrBase holds [z, v0, v1, ..., 1/w] at the first
+     * pixel and attrDx the amount they change from one pixel to the next.
+     * Pixel i gets the values of pixel i-1 plus attrDx. For a PERSPECTIVE
+     * attribute vk is ak/w and the attribute is vk divided by the 1/w value;
+     * for SCREEN_LINEAR and FLAT ones vk is ak itself (with no change for
+     * FLAT). So f.attrs[0] is z and f.attrs[1 + k] is ak. Values outside
+     * attrReadMask(), and 1/w when no perspective attribute is read, are
+     * undefined.
+     * 
+     * The default implementation steps the values this way and calls
+     * fragment(Fragment, FrameBuffer) for each pixel. Subclasses can override
+     * it with a tight loop that produces the same result.
+     *
+     * @param y The row of the run.
+     * @param x0 The first column of the run.
+     * @param count The number of pixels in the run.
+     * @param attrBase The interpolated values at (x0, y), 2 + nAttr() floats.
+     * @param attrDx The per-pixel increments of those values.
+     * @param fb The framebuffer in which to render the fragments.
+     */
+    public void fragmentSpan(int y, int x0, int count, float[] attrBase, float[] attrDx, FrameBuffer fb) {
+
+        int na = nAttr();
+        if (spanFrag == null || spanFrag.attrs.length != 1 + na) {
+            spanFrag = new Fragment(1 + na);
+            spanData = new float[2 + na];
+            spanQualifiers = new int[na];
+            int mask = attrReadMask();
+            for (int ia = 0; ia < na; ia++)
+                spanQualifiers[ia] = (mask & (2 << ia)) != 0 ? attrQualifier(ia) : -1;
+        }
+        System.arraycopy(attrBase, 0, spanData, 0, 2 + na);
+
+        spanFrag.y = y;
+        for (spanFrag.x = x0; spanFrag.x < x0 + count; spanFrag.x++) {
+            spanFrag.attrs[0] = spanData[0];
+            float w = 1.0f / spanData[1 + na];
+            for (int ia = 0; ia < na; ia++) {
+                if (spanQualifiers[ia] == PERSPECTIVE)
+                    spanFrag.attrs[1 + ia] = spanData[1 + ia] * w;
+                else if (spanQualifiers[ia] >= 0)
+                    spanFrag.attrs[1 + ia] = spanData[1 + ia];
+            }
+            fragment(spanFrag, fb);
+            for (int k = 0; k < 2 + na; k++)
+                spanData[k] += attrDx[k];
+        }
+    }
+
+    /**
+     * Returns true if this processor needs the screen-space derivatives of its
+     * attributes. The rasterizer then hands it 2 x 2 quads of pixels through
+     * fragmentQuad instead of runs through fragmentSpan.
+     *
+     * @return True if fragments should be shaded in quads.
+     */
+    public boolean usesDerivatives() {
+
+        return false;
+    }
+
+    /**
+     * Processes a 2 x 2 quad of pixels. quad[0] is the pixel (x, y) with even x
+     * and y, quad[1] is (x + 1, y), quad[2] is (x, y + 1) and quad[3] is
+     * (x + 1, y + 1); their attributes are laid out as in fragment(Fragment,
+     * FrameBuffer). Bit i of mask is set if quad[i] is covered by the
+     * triangle (and passed the early depth test, if requested). The other
+     * pixels are helpers: their attributes are extrapolated from the triangle
+     * but they must not be written to the framebuffer, and may even lie
+     * outside it. ddx and ddy hold, for every attribute, the difference from
+     * quad[0] to quad[1] and from quad[0] to quad[2].
+     * 
+     * The default implementation calls fragment(Fragment, FrameBuffer) for
+     * every covered pixel.
+     *
+     * @param quad The four fragments of the quad.
+     * @param mask The covered pixels of the quad.
+     * @param ddx The x derivatives of the attributes, 1 + nAttr() floats.
+     * @param ddy The y derivatives of the attributes, 1 + nAttr() floats.
+     * @param fb The framebuffer in which to render the fragments.
+     */
+    public void fragmentQuad(Fragment[] quad, int mask, float[] ddx, float[] ddy, FrameBuffer fb) {
+
+        for (int i = 0; i < 4; i++)
+            if ((mask & (1 << i)) != 0)
+                fragment(quad[i], fb);
+    }
+
     /**
      * This sets the texture that the fragment processor should use.
      * 
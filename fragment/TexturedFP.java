@@ -19,6 +19,13 @@ public class TexturedFP extends FragmentProcessor {
         return 5;   // surface color (r,g,b), texture coordinates (u,v)
     }
 
+    /**
+     * @see FragmentProcessor#earlyDepthTest()
+     */
+    public boolean earlyDepthTest() {
+        return true;
+    }
+
     /**
      * @see FragmentProcessor#fragment(Fragment, FrameBuffer)
      */
@@ -27,11 +34,68 @@ public class TexturedFP extends FragmentProcessor {
         // but also samples texture (use texture.sample(inCoords, outColor))
         // and then multiplies surface color with texture color
         // should also clamp to [0, 1]
-    	Vector2f p = new Vector2f(f.attrs[4], f.attrs[5]);
-    	Color3f colorTmp = new Color3f();
-    	texture.sample(p, colorTmp);
     	if (f.attrs[0] < fb.getZ(f.x, f.y)) {
+    		p.set(f.attrs[4], f.attrs[5]);
+    		texture.sample(p, colorTmp);
     		fb.set(f.x, f.y, f.attrs[1] * colorTmp.x, f.attrs[2] * colorTmp.y, f.attrs[3] * colorTmp.z, f.attrs[0]);
     	}
     }
+
+    /** Scratch space for the texture lookup */
+    private final Vector2f p = new Vector2f();
+    private final Vector2f dpdx = new Vector2f();
+    private final Vector2f dpdy = new Vector2f();
+    private final Color3f colorTmp = new Color3f();
+
+    /**
+     * @see FragmentProcessor#usesDerivatives()
+     */
+    public boolean usesDerivatives() {
+        return true;
+    }
+
+    /**
+     * Like fragment(Fragment, FrameBuffer), but picks the mip level of the
+     * texture from the texture coordinate derivatives of the quad. The
+     * rasterizer only sets the mask bits of pixels that passed its depth
+     * test, so they are not tested again.
+     * 
+     * @see FragmentProcessor#fragmentQuad(Fragment[], int, float[], float[], FrameBuffer)
+     */
+    public void fragmentQuad(Fragment[] quad, int mask, float[] ddx, float[] ddy, FrameBuffer fb) {
+        dpdx.set(ddx[4], ddx[5]);
+        dpdy.set(ddy[4], ddy[5]);
+        for (int i = 0; i < 4; i++) {
+            Fragment f = quad[i];
+            if ((mask & (1 << i)) != 0) {
+                p.set(f.attrs[4], f.attrs[5]);
+                texture.sample(p, dpdx, dpdy, colorTmp);
+                fb.set(f.x, f.y, f.attrs[1] * colorTmp.x, f.attrs[2] * colorTmp.y, f.attrs[3] * colorTmp.z, f.attrs[0]);
+            }
+        }
+    }
+
+    /**
+     * Like ColorZBufferFP, writes the pixels without testing their depth
+     * again.
+     * 
+     * @see FragmentProcessor#fragmentSpan(int, int, int, float[], float[], FrameBuffer)
+     */
+    public void fragmentSpan(int y, int x0, int count, float[] attrBase, float[] attrDx, FrameBuffer fb) {
+        float z = attrBase[0], r = attrBase[1], g = attrBase[2], b = attrBase[3];
+        float u = attrBase[4], v = attrBase[5], q = attrBase[6];
+        for (int x = x0; x < x0 + count; x++) {
+            float w = 1.0f / q;
+            p.set(u * w, v * w);
+            texture.sample(p, colorTmp);
+            fb.set(x, y, r * w * colorTmp.x, g * w * colorTmp.y, b * w * colorTmp.z, z);
+            z += attrDx[0];
+            r += attrDx[1];
+            g += attrDx[2];
+            b += attrDx[3];
+            u += attrDx[4];
+            v += attrDx[5];
+            q += attrDx[6];
+        }
+    }
 }
\ No newline at end of file
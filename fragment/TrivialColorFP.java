@@ -16,6 +16,16 @@ public class TrivialColorFP extends FragmentProcessor {
         return 3;   // surface color (r,g,b)
     }
 
+    /**
+     * Only the color is read; the depth is never interpolated.
+     * 
+     * @see FragmentProcessor#attrReadMask()
+     */
+    public int attrReadMask() {
+
+        return 0xe;
+    }
+
     /**
      * @see FragmentProcessor#fragment(Fragment, FrameBuffer)
      */
@@ -24,4 +34,20 @@ public class TrivialColorFP extends FragmentProcessor {
         fb.set(f.x, f.y, f.attrs[1], f.attrs[2], f.attrs[3], 0);
     }
 
+    /**
+     * @see FragmentProcessor#fragmentSpan(int, int, int, float[], float[], FrameBuffer)
+     */
+    public void fragmentSpan(int y, int x0, int count, float[] attrBase, float[] attrDx, FrameBuffer fb) {
+
+        float r = attrBase[1], g = attrBase[2], b = attrBase[3], q = attrBase[4];
+        for (int x = x0; x < x0 + count; x++) {
+            float w = 1.0f / q;
+            fb.set(x, y, r * w, g * w, b * w, 0);
+            r += attrDx[1];
+            g += attrDx[2];
+            b += attrDx[3];
+            q += attrDx[4];
+        }
+    }
+
 }
\ No newline at end of file
@@ -76,11 +76,11 @@ public class Matrix4f {
         m[2][0] = w.x;
         m[2][1] = w.y;
         m[2][2] = w.z;
-        Vector4f temp = new Vector4f(p.x, p.y, p.z, 1.0f);
-        rightMultiply(temp);
-        m[0][3] = -temp.x;
-        m[1][3] = -temp.y;
-        m[2][3] = -temp.z;
+        tempP.set(p.x, p.y, p.z, 1.0f);
+        rightMultiply(tempP);
+        m[0][3] = -tempP.x;
+        m[1][3] = -tempP.y;
+        m[2][3] = -tempP.z;
     }
 
     /**
@@ -116,9 +116,10 @@ public class Matrix4f {
      */
     public void setRotate(float angle, Vector3f axis) {
 
-        Vector3f u = new Vector3f(axis);
+        Vector3f u = tempAxis;
+        u.set(axis);
         u.normalize();
-        float[] ua = new float[3];
+        float[] ua = tempA;
         u.get(ua);
         setIdentity();
         for (int i = 0; i < 3; i++)
@@ -163,6 +164,13 @@ public class Matrix4f {
         m[2][2] = v.z;
     }
 
+    /** Temporary storage for the origin in setCtoF */
+    private Vector4f tempP = new Vector4f();
+
+    /** Temporary storage for the normalized axis in setRotate */
+    private Vector3f tempAxis = new Vector3f();
+    private float[] tempA = new float[3];
+
     /** Temporary storage for doing a matrix multiply */
     private float[][] tempM = new float[4][4];
 
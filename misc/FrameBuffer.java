@@ -24,6 +24,62 @@ public class FrameBuffer {
     /** The z buffer - holds the z value of the current fragment. */
     protected float[] zData;
 
+    /**
+     * Size, in pixels, of the tiles of the coarse depth buffer. Equal to the
+     * rasterizer's block size, and divides its tile size so that the tiles of
+     * the tile-binned mode never share a coarse depth entry.
+     */
+    public static final int HIZ_TILE_SIZE = 8;
+
+    /** The number of coarse depth tiles in each direction. */
+    protected int hnx, hny;
+
+    /**
+     * The coarse depth buffer - an upper bound on the z values stored in each
+     * HIZ_TILE_SIZE x HIZ_TILE_SIZE tile of the z buffer.
+     */
+    protected float[] hizData;
+
+    /**
+     * True for the tiles whose bound may have become loose because the pixel
+     * holding the largest z was overwritten. Such bounds are recomputed on the
+     * next query.
+     */
+    protected boolean[] hizDirty;
+
+    /**
+     * The number of samples per pixel. With more than one sample, color and
+     * depth are stored per sample in sampleC and sampleZ, and cData only
+     * holds the image resolved from them.
+     */
+    protected int samples;
+
+    /** The rgb data of every sample, 3 * samples bytes per pixel. */
+    protected byte[] sampleC;
+
+    /** The z value of every sample, samples floats per pixel. */
+    protected float[] sampleZ;
+
+    /**
+     * The samples the next call to set covers, staged for each pixel by the
+     * rasterizer. Bit s is sample s; STAGED_DEPTH is set if the samples have
+     * passed the depth test and their own depths are in stagedZ, STAGED_Z if
+     * their depths are in stagedZ but still to be tested.
+     */
+    protected byte[] stagedMask;
+
+    /** The staged depths, samples floats per pixel. */
+    protected float[] stagedZ;
+
+    /** Flag of stagedMask: the staged samples come with their depths. */
+    public static final int STAGED_DEPTH = 0x10;
+
+    /**
+     * Flag of stagedMask: the staged samples come with their depths, which
+     * the fragment processor's depth test has not seen yet.
+     */
+    public static final int STAGED_Z = 0x20;
+
     /**
      * Constructs a new frame buffer with the given dimensions.
      * 
@@ -32,10 +88,35 @@ public class FrameBuffer {
      */
     public FrameBuffer(int newNx, int newNy) {
 
+        this(newNx, newNy, 1);
+    }
+
+    /**
+     * Constructs a new multisampled frame buffer with the given dimensions.
+     * 
+     * @param newNx The width of the new frame buffer.
+     * @param newNy The height of the new frame buffer.
+     * @param newSamples The number of samples per pixel, 1 or 4.
+     */
+    public FrameBuffer(int newNx, int newNy, int newSamples) {
+
         nx = newNx;
         ny = newNy;
+        samples = newSamples;
         cData = new byte[nx * ny * 3];
-        zData = new float[nx * ny];
+        if (samples == 1)
+            zData = new float[nx * ny];
+        else {
+            sampleC = new byte[nx * ny * 3 * samples];
+            sampleZ = new float[nx * ny * samples];
+            stagedMask = new byte[nx * ny];
+            stagedZ = new float[nx * ny * samples];
+        }
+
+        hnx = (nx + HIZ_TILE_SIZE - 1) / HIZ_TILE_SIZE;
+        hny = (ny + HIZ_TILE_SIZE - 1) / HIZ_TILE_SIZE;
+        hizData = new float[hnx * hny];
+        hizDirty = new boolean[hnx * hny];
     }
 
     /**
@@ -48,7 +129,138 @@ public class FrameBuffer {
      */
     public float getZ(int x, int y) {
 
-        return zData[x + nx * y];
+        if (samples == 1)
+            return zData[x + nx * y];
+
+        // With multisampling the depth test is done per sample before the
+        // fragment is shaded; a fragment that passed it must not be
+        // rejected again at the pixel center.
+        int k = x + nx * y;
+        int mask = stagedMask[k];
+        if ((mask & STAGED_DEPTH) != 0)
+            return Float.MAX_VALUE;
+
+        // If the fragment processor does the depth test itself, test each
+        // staged sample with its own depth here, keep those that pass for
+        // set, and let the fragment through if any does.
+        if ((mask & STAGED_Z) != 0) {
+            int passed = 0;
+            for (int s = 0; s < samples; s++)
+                if ((mask & (1 << s)) != 0 && stagedZ[samples * k + s] < sampleZ[samples * k + s])
+                    passed |= 1 << s;
+            stagedMask[k] = (byte) (passed != 0 ? passed | STAGED_DEPTH : 0);
+            return passed != 0 ? Float.MAX_VALUE : -Float.MAX_VALUE;
+        }
+        return getSampleMaxZ(k);
+    }
+
+    /**
+     * Returns the largest z value stored in the samples of pixel k.
+     */
+    protected float getSampleMaxZ(int k) {
+
+        float zMax = sampleZ[samples * k];
+        for (int s = 1; s < samples; s++)
+            zMax = Math.max(zMax, sampleZ[samples * k + s]);
+        return zMax;
+    }
+
+    /**
+     * @return Returns the number of samples per pixel
+     */
+    public int getSamples() {
+
+        return this.samples;
+    }
+
+    /**
+     * Returns the z value of sample s of pixel (x, y) of a multisampled frame
+     * buffer.
+     * 
+     * @param x The x coordinate.
+     * @param y The y coordinate.
+     * @param s The sample.
+     * @return The z value stored in that sample.
+     */
+    public float getSampleZ(int x, int y, int s) {
+
+        return sampleZ[samples * (x + nx * y) + s];
+    }
+
+    /**
+     * Stages the samples of pixel (x, y) that the next call to set covers.
+     * Used by the rasterizer, which evaluates coverage and depth per sample
+     * and then has the fragment processor shade the pixel once.
+     * 
+     * @param x The x coordinate.
+     * @param y The y coordinate.
+     * @param mask The covered samples, with STAGED_DEPTH if z holds their
+     *            depths and they have passed the depth test, or STAGED_Z if
+     *            z holds their depths and getZ is to test them.
+     * @param z The depths of the samples, samples floats, or null.
+     */
+    public void stageSamples(int x, int y, int mask, float[] z) {
+
+        int k = x + nx * y;
+        stagedMask[k] = (byte) mask;
+        if (z != null)
+            System.arraycopy(z, 0, stagedZ, samples * k, samples);
+    }
+
+    /**
+     * Returns the largest z value stored in the coarse depth tile holding the
+     * pixel (x, y). A fragment whose z is not less than this value is hidden
+     * everywhere in the tile.
+     * 
+     * @param x The x coordinate.
+     * @param y The y coordinate.
+     * @return The largest z value of the tile.
+     */
+    public float getMaxZ(int x, int y) {
+
+        int t = x / HIZ_TILE_SIZE + hnx * (y / HIZ_TILE_SIZE);
+        if (hizDirty[t])
+            refreshMaxZ(t);
+        return hizData[t];
+    }
+
+    /**
+     * Returns the largest z value stored in the coarse depth tiles overlapping
+     * the rectangle [x0, x1] x [y0, y1], which must lie within the image.
+     * 
+     * @param x0 The first column of the rectangle.
+     * @param y0 The first row of the rectangle.
+     * @param x1 The last column of the rectangle.
+     * @param y1 The last row of the rectangle.
+     * @return The largest z value of the tiles.
+     */
+    public float getMaxZ(int x0, int y0, int x1, int y1) {
+
+        float zMax = -Float.MAX_VALUE;
+        for (int ty = y0 / HIZ_TILE_SIZE; ty <= y1 / HIZ_TILE_SIZE; ty++) {
+            for (int tx = x0 / HIZ_TILE_SIZE; tx <= x1 / HIZ_TILE_SIZE; tx++) {
+                int t = tx + hnx * ty;
+                if (hizDirty[t])
+                    refreshMaxZ(t);
+                zMax = Math.max(zMax, hizData[t]);
+            }
+        }
+        return zMax;
+    }
+
+    /**
+     * Recomputes the coarse depth bound of tile t from the z buffer.
+     */
+    protected void refreshMaxZ(int t) {
+
+        int x0 = (t % hnx) * HIZ_TILE_SIZE, y0 = (t / hnx) * HIZ_TILE_SIZE;
+        int x1 = Math.min(nx, x0 + HIZ_TILE_SIZE), y1 = Math.min(ny, y0 + HIZ_TILE_SIZE);
+        float zMax = -Float.MAX_VALUE;
+        for (int iy = y0; iy < y1; iy++)
+            for (int ix = x0; ix < x1; ix++)
+                zMax = Math.max(zMax, samples == 1 ? zData[ix + nx * iy] : getSampleMaxZ(ix + nx * iy));
+        hizData[t] = zMax;
+        hizDirty[t] = false;
     }
 
     /**
@@ -59,6 +271,15 @@ public class FrameBuffer {
         return this.cData;
     }
 
+    /**
+     * @return Returns the z buffer array, indexed by x + width * y, or null
+     *         for a multisampled buffer
+     */
+    public float[] getZData() {
+
+        return this.zData;
+    }
+
     /**
      * @return Returns the width of the buffer
      */
@@ -87,13 +308,80 @@ public class FrameBuffer {
      */
     public void set(int ix, int iy, float r, float g, float b, float z) {
 
+        if (samples > 1) {
+            setSamples(ix, iy, r, g, b, z);
+            return;
+        }
+
         int offset = 3 * (ix + nx * iy);
 
         cData[offset + 0] = (byte) ((int) (255 * r) & 0xff);
         cData[offset + 1] = (byte) ((int) (255 * g) & 0xff);
         cData[offset + 2] = (byte) ((int) (255 * b) & 0xff);
 
-        zData[ix + nx * iy] = z;
+        // Keep the coarse bound above every stored z. Lowering the pixel
+        // that held the tile's largest z only leaves the bound loose.
+        int k = ix + nx * iy;
+        int t = ix / HIZ_TILE_SIZE + hnx * (iy / HIZ_TILE_SIZE);
+        float zOld = zData[k];
+        zData[k] = z;
+        if (z > hizData[t])
+            hizData[t] = z;
+        else if (zOld == hizData[t])
+            hizDirty[t] = true;
+    }
+
+    /**
+     * The multisampled version of set: writes the color to the samples staged
+     * for the pixel, with their staged depths or else with z, and consumes
+     * the staged mask. Samples whose depths getZ has not tested are written
+     * as they are, as set does without multisampling.
+     */
+    protected void setSamples(int ix, int iy, float r, float g, float b, float z) {
+
+        byte ir = (byte) ((int) (255 * r) & 0xff);
+        byte ig = (byte) ((int) (255 * g) & 0xff);
+        byte ib = (byte) ((int) (255 * b) & 0xff);
+
+        int k = ix + nx * iy;
+        int t = ix / HIZ_TILE_SIZE + hnx * (iy / HIZ_TILE_SIZE);
+        int mask = stagedMask[k];
+        stagedMask[k] = 0;
+        for (int s = 0; s < samples; s++) {
+            if ((mask & (1 << s)) == 0)
+                continue;
+            int i = samples * k + s;
+            sampleC[3 * i + 0] = ir;
+            sampleC[3 * i + 1] = ig;
+            sampleC[3 * i + 2] = ib;
+
+            float zs = (mask & (STAGED_DEPTH | STAGED_Z)) != 0 ? stagedZ[i] : z;
+            float zOld = sampleZ[i];
+            sampleZ[i] = zs;
+            if (zs > hizData[t])
+                hizData[t] = zs;
+            else if (zOld == hizData[t])
+                hizDirty[t] = true;
+        }
+    }
+
+    /**
+     * Resolves a multisampled frame buffer: every pixel of cData becomes the
+     * average of the colors of its samples. Does nothing with one sample per
+     * pixel, where cData is written directly.
+     */
+    public void resolve() {
+
+        if (samples == 1)
+            return;
+        for (int k = 0; k < nx * ny; k++) {
+            for (int c = 0; c < 3; c++) {
+                int sum = 0;
+                for (int s = 0; s < samples; s++)
+                    sum += sampleC[3 * (samples * k + s) + c] & 0xff;
+                cData[3 * k + c] = (byte) ((sum + samples / 2) / samples);
+            }
+        }
     }
 
     /**
@@ -115,7 +403,20 @@ public class FrameBuffer {
             cData[3 * k + 0] = ir;
             cData[3 * k + 1] = ig;
             cData[3 * k + 2] = ib;
-            zData[k] = z;
+            if (samples == 1)
+                zData[k] = z;
+        }
+        if (samples > 1) {
+            for (int i = 0; i < nx * ny * samples; i++) {
+                sampleC[3 * i + 0] = ir;
+                sampleC[3 * i + 1] = ig;
+                sampleC[3 * i + 2] = ib;
+                sampleZ[i] = z;
+            }
+        }
+        for (int t = 0; t < hnx * hny; t++) {
+            hizData[t] = z;
+            hizDirty[t] = false;
         }
     }
 
@@ -127,6 +428,7 @@ public class FrameBuffer {
      */
     public void write(String fname) {
 
+        resolve();
         try {
             FileOutputStream stream = new FileOutputStream(fname);
             String hdr = new String("P6 " + nx + " " + ny + " 255\n");
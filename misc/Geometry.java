@@ -1,5 +1,8 @@
 package pipeline.misc;
 
+import java.util.Arrays;
+import java.util.HashMap;
+
 import javax.vecmath.Color3f;
 import javax.vecmath.Vector2f;
 import javax.vecmath.Vector3f;
@@ -248,14 +251,20 @@ public class Geometry {
 
                 normals[0] = normals[1] = normals[2] = nrml;
                 // pipe.tp.triangle(vertices, colors, normals, null);
-                pipe.renderTriangle(vertices, colors, normals, null);
+                if (mesh != null)
+                    mesh.triangle(vertices, normals, null);
+                else
+                    pipe.renderTriangle(vertices, colors, normals, null);
             }
             else {
                 xyTex(v0, texs[0]);
                 xyTex(v1, texs[1]);
                 xyTex(v2, texs[2]);
                 // pipe.tp.triangle(vertices, colors, vertices, texs);
-                pipe.renderTriangle(vertices, colors, vertices, texs);
+                if (mesh != null)
+                    mesh.triangle(vertices, vertices, texs);
+                else
+                    pipe.renderTriangle(vertices, colors, vertices, texs);
             }
         }
         else {
@@ -360,6 +369,94 @@ public class Geometry {
         spheretri(n, v_n00, v_0n0, v_00p, c);
     }
 
+    /* The mesh being built by sphereBuffer, null while drawing */
+    private static MeshBuilder mesh = null;
+
+    /*
+     * Creates a retained buffer in the software pipeline holding the sphere
+     * drawn by sphere(n, c), without its colors, and returns its handle.
+     * Drawing the buffer gives the same triangles as the sphere method, but
+     * the vertices shared by neighboring triangles are stored only once, so
+     * the vertex processor runs once for each of them.
+     */
+    public static int sphereBuffer(int n) {
+
+        mesh = new MeshBuilder(!isFlatShaded);
+        try {
+            sphere(n, null);
+            return mesh.create();
+        }
+        finally {
+            mesh = null;
+        }
+    }
+
+    /*
+     * Collects triangles into the arrays of an indexed triangle list. When
+     * the vertex attributes only depend on the position, vertices at the same
+     * position are merged.
+     */
+    private static class MeshBuilder {
+
+        boolean share;
+
+        HashMap<Vector3f, Integer> indexOf = new HashMap<Vector3f, Integer>();
+
+        float[] positions = new float[384], normals = new float[384], texcoords = new float[256];
+
+        int[] indices = new int[384];
+
+        int nVerts, nIndices;
+
+        boolean hasTexcoords;
+
+        MeshBuilder(boolean newShare) {
+
+            share = newShare;
+        }
+
+        void triangle(Vector3f[] v, Vector3f[] n, Vector2f[] t) {
+
+            hasTexcoords = t != null;
+            for (int k = 0; k < 3; k++) {
+                Integer index = share ? indexOf.get(v[k]) : null;
+                if (index == null) {
+                    index = add(v[k], n[k], t == null ? null : t[k]);
+                    if (share)
+                        indexOf.put(new Vector3f(v[k]), index);
+                }
+                if (nIndices == indices.length)
+                    indices = Arrays.copyOf(indices, 2 * nIndices);
+                indices[nIndices++] = index;
+            }
+        }
+
+        int add(Vector3f v, Vector3f n, Vector2f t) {
+
+            if (3 * nVerts == positions.length) {
+                positions = Arrays.copyOf(positions, 2 * positions.length);
+                normals = Arrays.copyOf(normals, 2 * normals.length);
+                texcoords = Arrays.copyOf(texcoords, 2 * texcoords.length);
+            }
+            positions[3 * nVerts] = v.x;
+            positions[3 * nVerts + 1] = v.y;
+            positions[3 * nVerts + 2] = v.z;
+            normals[3 * nVerts] = n.x;
+            normals[3 * nVerts + 1] = n.y;
+            normals[3 * nVerts + 2] = n.z;
+            if (t != null) {
+                texcoords[2 * nVerts] = t.x;
+                texcoords[2 * nVerts + 1] = t.y;
+            }
+            return nVerts++;
+        }
+
+        int create() {
+
+            return pipe.createBuffer(Arrays.copyOf(positions, 3 * nVerts), Arrays.copyOf(normals, 3 * nVerts), null, hasTexcoords ? Arrays.copyOf(texcoords, 2 * nVerts) : null, Arrays.copyOf(indices, nIndices));
+        }
+    }
+
     /*
      * Draws a sphere out of triangles, using the spheretri function. The sphere
      * is rendered to the OpenGL pipeline. Mimics the other sphere function.
@@ -30,6 +30,16 @@ public class Texture {
 
     public Buffer cBuf;
 
+    /**
+     * The mip map: level 0 is cData, and every further level is a box
+     * filtered copy of the previous one at half the width and height, down to
+     * a single texel.
+     */
+    private byte[][] levels;
+
+    /** The width and height of each mip level. */
+    private int[] levelNx, levelNy;
+
     /**
      * Reads in a texture from the given file and stores the data. The image file
      * given must be stored in a format recognizable by javax.imageio.ImageIO.
@@ -61,6 +71,7 @@ public class Texture {
                 }
             }
             cBuf = ByteBuffer.wrap(cData);
+            buildMipMap();
 
             System.out.println("done.");
         }
@@ -88,6 +99,78 @@ public class Texture {
         cOut.set((cData[offset + 0] & 0xff) / 255.0f, (cData[offset + 1] & 0xff) / 255.0f, (cData[offset + 2] & 0xff) / 255.0f);
     }
 
+    /**
+     * Samples this texture for a given 2D location and screen-space
+     * derivatives of the texture coordinate. The mip level is the one whose
+     * texels come closest to the size of a pixel, judged by the longer of the
+     * two derivative vectors, and is then sampled like the base level in
+     * sample(Vector2f, Color3f).
+     * 
+     * @param p The 2D texture coordinate.
+     * @param dpdx The change of p from one pixel to the next in x.
+     * @param dpdy The change of p from one pixel to the next in y.
+     * @param cOut The result of sampling the texture.
+     */
+    public void sample(Vector2f p, Vector2f dpdx, Vector2f dpdy, Color3f cOut) {
+
+        // Squared pixel footprint in texels; the nearest level to half its
+        // base 2 logarithm is floor(log2(2 * m2) / 2).
+        float dux = dpdx.x * nx, dvx = dpdx.y * ny;
+        float duy = dpdy.x * nx, dvy = dpdy.y * ny;
+        float m2 = Math.max(dux * dux + dvx * dvx, duy * duy + dvy * dvy);
+        int level = m2 > 0.5f ? Math.getExponent(2 * m2) >> 1 : 0;
+        level = Math.min(level, levels.length - 1);
+
+        int lnx = levelNx[level], lny = levelNy[level];
+        int ix = (int) (p.x * lnx + 0.5);
+        int iy = (int) (p.y * lny + 0.5);
+
+        ix = Math.min(Math.max(ix, 0), lnx - 1);
+        iy = Math.min(Math.max(iy, 0), lny - 1);
+
+        byte[] data = levels[level];
+        int offset = 3 * (lnx * iy + ix);
+        cOut.set((data[offset + 0] & 0xff) / 255.0f, (data[offset + 1] & 0xff) / 255.0f, (data[offset + 2] & 0xff) / 255.0f);
+    }
+
+    /**
+     * Builds the mip levels from the base level. Each texel of a level is the
+     * average of the 2 x 2 texels below it; for odd sizes the last row or
+     * column of the level below is dropped.
+     */
+    private void buildMipMap() {
+
+        int n = 1;
+        for (int s = Math.max(nx, ny); s > 1; s /= 2)
+            n++;
+        levels = new byte[n][];
+        levelNx = new int[n];
+        levelNy = new int[n];
+        levels[0] = cData;
+        levelNx[0] = nx;
+        levelNy[0] = ny;
+
+        for (int l = 1; l < n; l++) {
+            int snx = levelNx[l - 1], sny = levelNy[l - 1];
+            int lnx = Math.max(1, snx / 2), lny = Math.max(1, sny / 2);
+            byte[] src = levels[l - 1], dst = new byte[3 * lnx * lny];
+            for (int iy = 0; iy < lny; iy++) {
+                int y0 = Math.min(2 * iy, sny - 1), y1 = Math.min(2 * iy + 1, sny - 1);
+                for (int ix = 0; ix < lnx; ix++) {
+                    int x0 = Math.min(2 * ix, snx - 1), x1 = Math.min(2 * ix + 1, snx - 1);
+                    for (int c = 0; c < 3; c++) {
+                        int sum = (src[3 * (x0 + snx * y0) + c] & 0xff) + (src[3 * (x1 + snx * y0) + c] & 0xff)
+                                + (src[3 * (x0 + snx * y1) + c] & 0xff) + (src[3 * (x1 + snx * y1) + c] & 0xff);
+                        dst[3 * (ix + lnx * iy) + c] = (byte) ((sum + 2) >> 2);
+                    }
+                }
+            }
+            levels[l] = dst;
+            levelNx[l] = lnx;
+            levelNy[l] = lny;
+        }
+    }
+
     /**
      * @see java.lang.Object#toString()
      */
@@ -8,6 +8,7 @@ import javax.vecmath.Color3f;
 import javax.vecmath.Vector3f;
 
 import pipeline.Pipeline;
+import pipeline.math.Matrix4f;
 import pipeline.misc.Geometry;
 
 /**
@@ -31,7 +32,17 @@ public class SceneBalls extends Scene {
     protected Vector3f locationA = new Vector3f(1.2f, 0.0f, 0.0f);
 
     /** The amount to translate the center of the second sphere. */
-    protected Vector3f locationB = new Vector3f(-2.4f, 0.0f, 0.0f);
+    protected Vector3f locationB = new Vector3f(-1.2f, 0.0f, 0.0f);
+
+    /** The pipeline holding the retained buffer of the sphere, and its handle */
+    Pipeline bufferPipe;
+
+    int sphere;
+
+    /** The transforms and colors of the two instances of the sphere. */
+    Matrix4f[] transforms = { new Matrix4f(), new Matrix4f() };
+
+    Color3f[] colors = new Color3f[2];
 
     /**
      * @see Scene#render(GLDrawable)
@@ -43,11 +54,15 @@ public class SceneBalls extends Scene {
         gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, GL.GL_RGB, texture.nx, texture.ny, 0, GL.GL_RGB, GL.GL_UNSIGNED_BYTE, texture.cBuf);
         texture.cBuf.rewind();
 
-        gl.glTranslatef(1.2f, 0.0f, 0.0f);
+        gl.glPushMatrix();
+        gl.glTranslatef(locationA.x, locationA.y, locationA.z);
         Geometry.sphere(DEPTH, colorA, d);
+        gl.glPopMatrix();
 
-        gl.glTranslatef(-2.4f, 0.0f, 0.0f);
+        gl.glPushMatrix();
+        gl.glTranslatef(locationB.x, locationB.y, locationB.z);
         Geometry.sphere(DEPTH, colorB, d);
+        gl.glPopMatrix();
     }
 
     /**
@@ -57,11 +72,16 @@ public class SceneBalls extends Scene {
 
         pipe.setTexture(texture);
 
-        pipe.translate(locationA);
-        Geometry.sphere(DEPTH, colorA);
+        if (bufferPipe != pipe) {
+            sphere = Geometry.sphereBuffer(DEPTH);
+            bufferPipe = pipe;
+        }
 
-        pipe.translate(locationB);
-        Geometry.sphere(DEPTH, colorB);
+        transforms[0].setTranslate(locationA);
+        transforms[1].setTranslate(locationB);
+        colors[0] = colorA;
+        colors[1] = colorB;
+        pipe.drawInstanced(sphere, transforms, colors);
     }
 
     /**
@@ -14,6 +14,11 @@ import pipeline.misc.Geometry;
  */
 public class SceneCube extends Scene {
 
+    /** The pipeline holding the display list of the cube, and its id */
+    Pipeline listPipe;
+
+    int list;
+
     /**
      * @see Scene#render(GLDrawable)
      */
@@ -30,7 +35,13 @@ public class SceneCube extends Scene {
     public void render(Pipeline pipe) {
 
         pipe.setTexture(texture);
-        Geometry.cube();
+        if (listPipe != pipe) {
+            list = pipe.beginList();
+            Geometry.cube();
+            pipe.endList();
+            listPipe = pipe;
+        }
+        pipe.callList(list);
     }
 
     /**
@@ -92,6 +92,18 @@ public class SceneMaze extends Scene {
 
     private static final Vector3f v_00n = new Vector3f(0, 0, -1);
 
+    /** The translation centering the maze on the origin */
+    private static final Vector3f origin = new Vector3f(-(MAZE_SIZE + 2) / 2.0f, -0.5f, -(MAZE_SIZE + 2) / 2.0f);
+
+    private static final Vector3f cellMin = new Vector3f();
+
+    private static final Vector3f cellMax = new Vector3f();
+
+    /** The pipeline holding the display lists of the cells' walls, and their ids */
+    Pipeline listPipe;
+
+    int[][] lists = new int[MAZE_SIZE + 1][MAZE_SIZE + 1];
+
     /**
      * @see Scene#render(GLDrawable)
      */
@@ -102,6 +114,7 @@ public class SceneMaze extends Scene {
 
         gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, GL.GL_RGB, texture.nx, texture.ny, 0, GL.GL_RGB, GL.GL_UNSIGNED_BYTE, texture.cBuf);
         texture.cBuf.rewind();
+        gl.glPushMatrix();
         gl.glTranslatef(-(MAZE_SIZE + 2) / 2.0f, -0.5f, -(MAZE_SIZE + 2) / 2.0f);
 
         for (int ix = 1; ix <= MAZE_SIZE; ix++) {
@@ -136,6 +149,7 @@ public class SceneMaze extends Scene {
                 }
             }
         }
+        gl.glPopMatrix();
     }
 
     /**
@@ -145,40 +159,65 @@ public class SceneMaze extends Scene {
 
         pipe.setTexture(texture);
 
-        pipe.translate(new Vector3f(-(MAZE_SIZE + 2) / 2.0f, -0.5f, -(MAZE_SIZE + 2) / 2.0f));
+        pipe.pushMatrix();
+        pipe.translate(origin);
 
+        if (listPipe != pipe) {
+            for (int ix = 1; ix <= MAZE_SIZE; ix++) {
+                for (int iz = 1; iz <= MAZE_SIZE; iz++) {
+                    lists[ix][iz] = pipe.beginList();
+                    walls(ix, iz);
+                    pipe.endList();
+                }
+            }
+            listPipe = pipe;
+        }
+
+        // Each cell's walls lie within the unit box of the cell
         for (int ix = 1; ix <= MAZE_SIZE; ix++) {
             for (int iz = 1; iz <= MAZE_SIZE; iz++) {
-                if (!xConn[ix][iz]) {
-                    v0.set(ix + 1, 0, iz);
-                    v1.set(ix + 1, 0, iz + 1);
-                    v3.set(ix + 1, 1, iz);
-                    v2.set(ix + 1, 1, iz + 1);
-                    Geometry.quadPair(v0, v1, v2, v3, v_n00, cmx, cpx);
-                }
-                if (!zConn[ix][iz]) {
-                    v0.set(ix, 0, iz + 1);
-                    v1.set(ix + 1, 0, iz + 1);
-                    v3.set(ix, 1, iz + 1);
-                    v2.set(ix + 1, 1, iz + 1);
-                    Geometry.quadPair(v0, v1, v2, v3, v_00n, cmz, cpz);
-                }
-                if (ix == 1 && !xConn[0][iz]) {
-                    v0.set(ix, 0, iz);
-                    v1.set(ix, 0, iz + 1);
-                    v3.set(ix, 1, iz);
-                    v2.set(ix, 1, iz + 1);
-                    Geometry.quadPair(v0, v1, v2, v3, v_n00, cmx, cpx);
-                }
-                if (iz == 1 && !zConn[ix][0]) {
-                    v0.set(ix, 0, iz);
-                    v1.set(ix + 1, 0, iz);
-                    v3.set(ix, 1, iz);
-                    v2.set(ix + 1, 1, iz);
-                    Geometry.quadPair(v0, v1, v2, v3, v_00n, cmz, cpz);
-                }
+                cellMin.set(ix, 0, iz);
+                cellMax.set(ix + 1, 1, iz + 1);
+                if (pipe.isVisible(cellMin, cellMax))
+                    pipe.callList(lists[ix][iz]);
             }
         }
+        pipe.popMatrix();
+    }
+
+    /**
+     * Renders the walls of one cell of the maze onto the pipeline of Geometry.
+     */
+    void walls(int ix, int iz) {
+
+        if (!xConn[ix][iz]) {
+            v0.set(ix + 1, 0, iz);
+            v1.set(ix + 1, 0, iz + 1);
+            v3.set(ix + 1, 1, iz);
+            v2.set(ix + 1, 1, iz + 1);
+            Geometry.quadPair(v0, v1, v2, v3, v_n00, cmx, cpx);
+        }
+        if (!zConn[ix][iz]) {
+            v0.set(ix, 0, iz + 1);
+            v1.set(ix + 1, 0, iz + 1);
+            v3.set(ix, 1, iz + 1);
+            v2.set(ix + 1, 1, iz + 1);
+            Geometry.quadPair(v0, v1, v2, v3, v_00n, cmz, cpz);
+        }
+        if (ix == 1 && !xConn[0][iz]) {
+            v0.set(ix, 0, iz);
+            v1.set(ix, 0, iz + 1);
+            v3.set(ix, 1, iz);
+            v2.set(ix, 1, iz + 1);
+            Geometry.quadPair(v0, v1, v2, v3, v_n00, cmx, cpx);
+        }
+        if (iz == 1 && !zConn[ix][0]) {
+            v0.set(ix, 0, iz);
+            v1.set(ix + 1, 0, iz);
+            v3.set(ix, 1, iz);
+            v2.set(ix + 1, 1, iz);
+            Geometry.quadPair(v0, v1, v2, v3, v_00n, cmz, cpz);
+        }
     }
 
     /**
@@ -8,8 +8,6 @@ import javax.media.opengl.GL;
 import javax.media.opengl.GL2;
 import javax.media.opengl.GLAutoDrawable;
 import javax.media.opengl.GLDrawable;
-import javax.vecmath.Color3f;
-import javax.vecmath.Vector2f;
 import javax.vecmath.Vector3f;
 
 import pipeline.Pipeline;
@@ -33,6 +31,14 @@ public class SceneMesh extends Scene {
     /** The triangle index list */
     int[] triangles;
 
+    /** The corners of the bounding box of the vertices */
+    Vector3f boundsMin = new Vector3f(), boundsMax = new Vector3f();
+
+    /** The pipeline holding the retained buffer of the mesh, and its handle */
+    Pipeline bufferPipe;
+
+    int buffer;
+
     /** The name of the file containing the mesh data */
     String filename;
 
@@ -87,6 +93,7 @@ public class SceneMesh extends Scene {
                 throw new Exception("Broken file - triangles expected.");
 
             computeNormals(nPolys);
+            computeBounds();
 
         }
         catch (Exception e) {
@@ -95,6 +102,19 @@ public class SceneMesh extends Scene {
         }
     }
 
+    /**
+     * Computes the bounding box of the vertices.
+     */
+    protected void computeBounds() {
+
+        boundsMin.set(Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
+        boundsMax.set(-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE);
+        for (int i = 0; i < vertices.length; i += 3) {
+            boundsMin.set(Math.min(boundsMin.x, vertices[i]), Math.min(boundsMin.y, vertices[i + 1]), Math.min(boundsMin.z, vertices[i + 2]));
+            boundsMax.set(Math.max(boundsMax.x, vertices[i]), Math.max(boundsMax.y, vertices[i + 1]), Math.max(boundsMax.z, vertices[i + 2]));
+        }
+    }
+
     protected void computeNormals(int nPolys) {
         // compute normals
 
@@ -161,33 +181,35 @@ public class SceneMesh extends Scene {
 
     }
 
-    private static final Vector3f v0 = new Vector3f();
-
-    private static final Vector3f n0 = new Vector3f();
-
-    private static final Vector2f t0 = new Vector2f();
-
-    private static final Vector3f v1 = new Vector3f();
-
-    private static final Vector3f n1 = new Vector3f();
-
-    private static final Vector2f t1 = new Vector2f();
-
-    private static final Vector3f v2 = new Vector3f();
-
-    private static final Vector3f n2 = new Vector3f();
-
-    private static final Vector2f t2 = new Vector2f();
-
-    private static final Color3f c0 = new Color3f(1, 1, 1);
-
-    private static final Vector3f[] v = new Vector3f[] { v0, v1, v2 };
-
-    private static final Vector3f[] n = new Vector3f[] { n0, n1, n2 };
+    /**
+     * The mesh with its vertices split per triangle corner, since a vertex
+     * gets a different normal in each triangle; built when the mesh is first
+     * rendered.
+     */
+    float[] cornerVertices, cornerNormals, cornerTexcoords;
 
-    private static final Vector2f[] t = new Vector2f[] { t0, t1, t2 };
+    int[] cornerTriangles;
 
-    private static final Color3f[] c = new Color3f[] { c0, c0, c0 };
+    /**
+     * Builds the per-corner arrays: corner i of the mesh is vertex i, with the
+     * position and texture coordinates of the vertex it came from and the
+     * normal of its triangle.
+     */
+    protected void splitCorners() {
+
+        int n = triangles.length;
+        cornerVertices = new float[3 * n];
+        cornerNormals = new float[3 * n];
+        cornerTexcoords = new float[2 * n];
+        cornerTriangles = new int[n];
+        for (int i = 0; i < n; i++) {
+            int iv = triangles[i], face = i - i % 3;
+            System.arraycopy(vertices, 3 * iv, cornerVertices, 3 * i, 3);
+            System.arraycopy(normals, face, cornerNormals, 3 * i, 3);
+            System.arraycopy(texcoords, 2 * iv, cornerTexcoords, 2 * i, 2);
+            cornerTriangles[i] = i;
+        }
+    }
 
     /**
      * @see Scene#render(Pipeline)
@@ -196,24 +218,15 @@ public class SceneMesh extends Scene {
 
         pipe.setTexture(texture);
 
-        for (int i = 0; i < triangles.length; i += 3) {
-            int iv0 = 3 * triangles[i + 0];
-            int iv1 = 3 * triangles[i + 1];
-            int iv2 = 3 * triangles[i + 2];
-            v0.set(vertices[iv0], vertices[iv0 + 1], vertices[iv0 + 2]);
-            v1.set(vertices[iv1], vertices[iv1 + 1], vertices[iv1 + 2]);
-            v2.set(vertices[iv2], vertices[iv2 + 1], vertices[iv2 + 2]);
-
-            n0.set(normals[i], normals[i + 1], normals[i + 2]);
-            n1.set(n0);
-            n2.set(n0); // would have to change this to do smoothed normals
-
-            t0.set(texcoords[triangles[i + 0] * 2], texcoords[triangles[i + 0] * 2 + 1]);
-            t1.set(texcoords[triangles[i + 1] * 2], texcoords[triangles[i + 1] * 2 + 1]);
-            t2.set(texcoords[triangles[i + 2] * 2], texcoords[triangles[i + 2] * 2 + 1]);
-
-            pipe.renderTriangle(v, c, n, t);
+        if (!pipe.isVisible(boundsMin, boundsMax))
+            return;
+
+        if (bufferPipe != pipe) {
+            splitCorners();
+            buffer = pipe.createBuffer(cornerVertices, cornerNormals, null, cornerTexcoords, cornerTriangles);
+            bufferPipe = pipe;
         }
+        pipe.drawBuffer(buffer);
     }
 
     /**
@@ -6,8 +6,6 @@ import javax.media.opengl.GL;
 import javax.media.opengl.GL2;
 import javax.media.opengl.GLAutoDrawable;
 import javax.media.opengl.GLDrawable;
-import javax.vecmath.Color3f;
-import javax.vecmath.Vector2f;
 import javax.vecmath.Vector3f;
 
 import pipeline.Pipeline;
@@ -105,34 +103,6 @@ public class SceneSmoothMesh extends SceneMesh {
 
     }
 
-    private static final Vector3f v0 = new Vector3f();
-
-    private static final Vector3f n0 = new Vector3f();
-
-    private static final Vector2f t0 = new Vector2f();
-
-    private static final Vector3f v1 = new Vector3f();
-
-    private static final Vector3f n1 = new Vector3f();
-
-    private static final Vector2f t1 = new Vector2f();
-
-    private static final Vector3f v2 = new Vector3f();
-
-    private static final Vector3f n2 = new Vector3f();
-
-    private static final Vector2f t2 = new Vector2f();
-
-    private static final Color3f c0 = new Color3f(1, 1, 1);
-
-    private static final Vector3f[] v = new Vector3f[] { v0, v1, v2 };
-
-    private static final Vector3f[] n = new Vector3f[] { n0, n1, n2 };
-
-    private static final Vector2f[] t = new Vector2f[] { t0, t1, t2 };
-
-    private static final Color3f[] c = new Color3f[] { c0, c0, c0 };
-
     /**
      * @see Scene#render(Pipeline)
      */
@@ -140,24 +110,16 @@ public class SceneSmoothMesh extends SceneMesh {
 
         pipe.setTexture(texture);
 
-        for (int i = 0; i < triangles.length; i += 3) {
-            int iv0 = 3 * triangles[i + 0];
-            int iv1 = 3 * triangles[i + 1];
-            int iv2 = 3 * triangles[i + 2];
-            v0.set(vertices[iv0], vertices[iv0 + 1], vertices[iv0 + 2]);
-            v1.set(vertices[iv1], vertices[iv1 + 1], vertices[iv1 + 2]);
-            v2.set(vertices[iv2], vertices[iv2 + 1], vertices[iv2 + 2]);
-
-            n0.set(normals[iv0], normals[iv0 + 1], normals[iv0 + 2]);
-            n1.set(normals[iv1], normals[iv1 + 1], normals[iv1 + 2]);
-            n2.set(normals[iv2], normals[iv2 + 1], normals[iv2 + 2]);
-
-            t0.set(texcoords[triangles[i + 0] * 2], texcoords[triangles[i + 0] * 2 + 1]);
-            t1.set(texcoords[triangles[i + 1] * 2], texcoords[triangles[i + 1] * 2 + 1]);
-            t2.set(texcoords[triangles[i + 2] * 2], texcoords[triangles[i + 2] * 2 + 1]);
-
-            pipe.renderTriangle(v, c, n, t);
+        if (!pipe.isVisible(boundsMin, boundsMax))
+            return;
+
+        // Shared vertices have the same normal in every triangle, so each
+        // one is processed only once
+        if (bufferPipe != pipe) {
+            buffer = pipe.createBuffer(vertices, normals, null, texcoords, triangles);
+            bufferPipe = pipe;
         }
+        pipe.drawBuffer(buffer);
     }
 
     public String toString() {
@@ -19,21 +19,33 @@ public class ConstColorVP extends VertexProcessor {
     /** This is the composed modelview, projection, and viewport matrix. */
     protected Matrix4f m = new Matrix4f();
 
+    /** The projection and viewport matrices m was composed with. */
+    protected Matrix4f projection = new Matrix4f(), viewport = new Matrix4f();
+
     // The number of fragment attributes provided to the fragment processor
     public int nAttr() {
         return 3;   // surface color (r,g,b)
     }
 
     /**
-     * @see VertexProcessor#updateTransforms(Pipeline)
+     * @see VertexProcessor#updateTransforms(Pipeline, Matrix4f)
      * 
      * In this simple VP we can multiply all matrices together.  In most other VPs
      * we'll need to keep the modelview matrix around separately.
      */
-    public void updateTransforms(Pipeline pipe) {
-        m.set(pipe.modelviewMatrix);
-        m.leftCompose(pipe.projectionMatrix);
-        m.leftCompose(pipe.viewportMatrix);
+    public void updateTransforms(Pipeline pipe, Matrix4f modelview) {
+        projection.set(pipe.projectionMatrix);
+        viewport.set(pipe.viewportMatrix);
+        setModelview(pipe, modelview);
+    }
+
+    /**
+     * @see VertexProcessor#setModelview(Pipeline, Matrix4f)
+     */
+    public void setModelview(Pipeline pipe, Matrix4f modelview) {
+        m.set(modelview);
+        m.leftCompose(projection);
+        m.leftCompose(viewport);
     }
 
     /**
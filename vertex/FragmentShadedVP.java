@@ -24,9 +24,9 @@ public class FragmentShadedVP extends VertexProcessor {
     }
 
     /**
-     * @see VertexProcessor#updateTransforms(Pipeline)
+     * @see VertexProcessor#updateTransforms(Pipeline, Matrix4f)
      */
-    public void updateTransforms(Pipeline pipe) {
+    public void updateTransforms(Pipeline pipe, Matrix4f modelview) {
         // TODO 2
     }
 
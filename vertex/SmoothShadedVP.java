@@ -24,20 +24,87 @@ public class SmoothShadedVP extends VertexProcessor {
         return 3;   // surface color (r,g,b)
     }
 
+    /** Scratch space for the prepared data of a single vertex. */
+    protected float[] dirs = new float[0];
+
     /**
-     * @see VertexProcessor#updateTransforms(Pipeline)
+     * @see VertexProcessor#updateTransforms(Pipeline, Matrix4f)
      */
-    public void updateTransforms(Pipeline pipe) {
-        modelView.set(pipe.modelviewMatrix);
+    public void updateTransforms(Pipeline pipe, Matrix4f modelview) {
+        modelView.set(modelview);
         
         composition.set(pipe.projectionMatrix);
         composition.leftCompose(pipe.viewportMatrix);
     }
+
+    /**
+     * @see VertexProcessor#setModelview(Pipeline, Matrix4f)
+     */
+    public void setModelview(Pipeline pipe, Matrix4f modelview) {
+        modelView.set(modelview);
+    }
+
+    /**
+     * The light and halfway directions for every light, which only depend on
+     * the object space position: 6 floats per light.
+     * 
+     * @see VertexProcessor#preparedSize()
+     */
+    public int preparedSize() {
+        return 6 * Pipeline.lights.size();
+    }
+
+    /**
+     * @see VertexProcessor#prepare(Vector3f, Vector3f, float[], int)
+     */
+    public void prepare(Vector3f v, Vector3f n, float[] out, int offset) {
+        // note that light positions are given in eye space, and the camera is at the origin
+        Vector3f eyeDir = new Vector3f();
+        eyeDir.set(v);
+        eyeDir.scale(-1);
+        eyeDir.normalize();
+        
+        for (PointLight light : Pipeline.lights) {
+        	Vector3f lightDir = 
+        		new Vector3f(light.getPosition().x, light.getPosition().y, light.getPosition().z);
+        	lightDir.sub(v);
+        	lightDir.normalize();
+        	
+    		Vector3f h = new Vector3f();
+			h.add(lightDir, eyeDir);
+			h.normalize();
+			
+			out[offset++] = lightDir.x;
+			out[offset++] = lightDir.y;
+			out[offset++] = lightDir.z;
+			out[offset++] = h.x;
+			out[offset++] = h.y;
+			out[offset++] = h.z;
+		}
+    }
    
     /**
      * @see VertexProcessor#vertex(Vector3f, Color3f, Vector3f, Vector2f, Vertex)
      */
     public void vertex(Vector3f v, Color3f c, Vector3f n, Vector2f t, Vertex output) {
+        if (dirs.length < preparedSize())
+            dirs = new float[preparedSize()];
+        prepare(v, n, dirs, 0);
+        shade(dirs, 0, v, c, n, output);
+    }
+
+    /**
+     * @see VertexProcessor#vertex(float[], int, Vector3f, Color3f, Vector3f, Vector2f, Vertex)
+     */
+    public void vertex(float[] prepared, int offset, Vector3f v, Color3f c, Vector3f n, Vector2f t, Vertex output) {
+        shade(prepared, offset, v, c, n, output);
+    }
+
+    /**
+     * Transforms a vertex to screen space and computes its color, with the
+     * light and halfway directions computed by prepare.
+     */
+    protected void shade(float[] prepared, int offset, Vector3f v, Color3f c, Vector3f n, Vertex output) {
         // multiply v by modelview matrix, this gives vertex pos in "eye space"
         output.v.set(v.x, v.y, v.z, 1);
     	modelView.rightMultiply(output.v);
@@ -55,27 +122,17 @@ public class SmoothShadedVP extends VertexProcessor {
         colorTmp.scale(Pipeline.ambientIntensity);
         
         // for each light, add diffuse and specular term, using normal, light direction, and eye direction
-        // note that light positions are given in eye space, and the camera is at the origin
 		
 		// diffuse term uses vertex color c and light color
         
         // specular term uses Pipeline.specularColor and assumes light color is full white
         // also uses Pipeline.specularExponent
         
-        Vector3f eyeDir = new Vector3f();
-        eyeDir.set(v);
-        eyeDir.scale(-1);
-        eyeDir.normalize();
-        
+        Vector3f lightDir = new Vector3f(), h = new Vector3f();
         for (PointLight light : Pipeline.lights) {
-        	Vector3f lightDir = 
-        		new Vector3f(light.getPosition().x, light.getPosition().y, light.getPosition().z);
-        	lightDir.sub(v);
-        	lightDir.normalize();
-        	
-    		Vector3f h = new Vector3f();
-			h.add(lightDir, eyeDir);
-			h.normalize();
+        	lightDir.set(prepared[offset], prepared[offset + 1], prepared[offset + 2]);
+        	h.set(prepared[offset + 3], prepared[offset + 4], prepared[offset + 5]);
+        	offset += 6;
 			
 			double x = Math.max(0, nModelView.dot(lightDir));
         	double y = Math.pow(Math.max(0, nModelView.dot(h)), Pipeline.specularExponent);
@@ -31,4 +31,14 @@ public class TexturedSmoothShadedVP extends SmoothShadedVP {
         output.attrs[4] = t.y;
     }
 
+    /**
+     * @see VertexProcessor#vertex(float[], int, Vector3f, Color3f, Vector3f, Vector2f, Vertex)
+     */
+    public void vertex(float[] prepared, int offset, Vector3f v, Color3f c, Vector3f n, Vector2f t, Vertex output) {
+        super.vertex(prepared, offset, v, c, n, t, output);
+        output.setAttrs(nAttr());
+        output.attrs[3] = t.x;
+        output.attrs[4] = t.y;
+    }
+
 }
\ No newline at end of file
@@ -5,6 +5,7 @@ import javax.vecmath.Vector2f;
 import javax.vecmath.Vector3f;
 
 import pipeline.Pipeline;
+import pipeline.math.Matrix4f;
 import pipeline.misc.Vertex;
 
 /**
@@ -39,12 +40,87 @@ public abstract class VertexProcessor {
      * current transformation matrices and the lighting parameters -- via the
      * Pipeline reference above. But for efficiency we may want to do some
      * precomputation. This function will be called by the pipeline to notify this
-     * object whenever the transforms parameters are changed.
+     * object when the transforms parameters have changed, once before the next
+     * primitive rather than after every change.
      * 
      * @param pipe The reference to the pipeline object. Can be used to determine
      *          the necessary matrices.
      */
-    public abstract void updateTransforms(Pipeline pipe);
+    public void updateTransforms(Pipeline pipe) {
+
+        updateTransforms(pipe, pipe.modelviewMatrix);
+    }
+
+    /**
+     * Does the precomputation of updateTransforms(Pipeline) with the given
+     * modelview matrix in place of the pipeline's. The projection and viewport
+     * matrices are read from the pipeline.
+     * 
+     * @param pipe The reference to the pipeline object.
+     * @param modelview The modelview matrix to transform the vertices by.
+     */
+    public abstract void updateTransforms(Pipeline pipe, Matrix4f modelview);
+
+    /**
+     * Called by Pipeline.drawInstanced before the vertices of each instance,
+     * to have them transformed by the given modelview matrix instead of the
+     * pipeline's; the projection and viewport matrices are the pipeline's.
+     * The pipeline calls updateTransforms before the next primitive. This
+     * default implementation runs updateTransforms with the given matrix;
+     * subclasses can redo just the work that depends on the modelview
+     * matrix.
+     * 
+     * @param pipe The reference to the pipeline object.
+     * @param modelview The modelview matrix of the instance.
+     */
+    public void setModelview(Pipeline pipe, Matrix4f modelview) {
+
+        updateTransforms(pipe, modelview);
+    }
+
+    /**
+     * Returns the number of floats of per-vertex data this vertex processor
+     * can compute from the object space position and normal of a vertex
+     * alone, without the modelview matrix or the color. Pipeline.drawInstanced
+     * computes them once per call with prepare and hands them to
+     * vertex(float[], int, ...) for every instance. This default keeps none.
+     * 
+     * @return The number of floats prepare writes per vertex.
+     */
+    public int preparedSize() {
+
+        return 0;
+    }
+
+    /**
+     * Computes the per-vertex data described in preparedSize.
+     * 
+     * @param v The vertex position in 3D object coordinates.
+     * @param n The vertex normal, or null.
+     * @param out The array to write preparedSize() floats into.
+     * @param offset The index of the first float to write.
+     */
+    public void prepare(Vector3f v, Vector3f n, float[] out, int offset) {
+
+    }
+
+    /**
+     * Like vertex(Vector3f, Color3f, Vector3f, Vector2f, Vertex), for a vertex
+     * whose data from prepare is already computed. The result must be the
+     * same. This default ignores the prepared data.
+     * 
+     * @param prepared The array holding the prepared data.
+     * @param offset The index of the vertex's first prepared float.
+     * @param v The vertex position in 3D object coordinates.
+     * @param c The color associated with the vertex.
+     * @param n The vertex normal.
+     * @param t Texture coordinates for each vertex.
+     * @param output The processed vertex.
+     */
+    public void vertex(float[] prepared, int offset, Vector3f v, Color3f c, Vector3f n, Vector2f t, Vertex output) {
+
+        vertex(v, c, n, t, output);
+    }
 
 
     /**